@@ -0,0 +1,103 @@
+/*
+ * Manifold
+ */
+
+package manifold.ij.core;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares the classloaders modules use to load type manifold services. Sibling modules usually have the same collective
+ * classpath, they get the same loader and the manifold classes are loaded once. Loaders are reference counted and
+ * closed when the last module using one is discarded, or when the project closes.
+ */
+class ClassLoaderPool
+{
+  private static final Logger LOG = Logger.getInstance( ClassLoaderPool.class );
+
+  private final Map<List<String>, Entry> _byClasspath;
+  private final Map<URLClassLoader, Entry> _byLoader;
+
+  ClassLoaderPool()
+  {
+    _byClasspath = new HashMap<>();
+    _byLoader = new HashMap<>();
+  }
+
+  synchronized URLClassLoader acquire( List<URL> classpath, ClassLoader parent )
+  {
+    // normalize: order is significant, duplicates are not
+    // note URL#equals() resolves host names, key on the external form instead
+    Map<String, URL> normalized = new LinkedHashMap<>();
+    for( URL url : classpath )
+    {
+      normalized.putIfAbsent( url.toExternalForm(), url );
+    }
+    List<String> key = new ArrayList<>( normalized.keySet() );
+
+    Entry entry = _byClasspath.get( key );
+    if( entry == null )
+    {
+      URL[] urls = normalized.values().toArray( new URL[normalized.size()] );
+      entry = new Entry( key, new URLClassLoader( urls, parent ) );
+      _byClasspath.put( key, entry );
+      _byLoader.put( entry._loader, entry );
+    }
+    entry._refCount++;
+    return entry._loader;
+  }
+
+  synchronized void release( URLClassLoader loader )
+  {
+    Entry entry = _byLoader.get( loader );
+    if( entry != null && --entry._refCount == 0 )
+    {
+      _byLoader.remove( loader );
+      _byClasspath.remove( entry._key );
+      close( loader );
+    }
+  }
+
+  synchronized void closeAll()
+  {
+    for( URLClassLoader loader : _byLoader.keySet() )
+    {
+      close( loader );
+    }
+    _byLoader.clear();
+    _byClasspath.clear();
+  }
+
+  private static void close( URLClassLoader loader )
+  {
+    try
+    {
+      loader.close();
+    }
+    catch( IOException e )
+    {
+      LOG.warn( e );
+    }
+  }
+
+  private static class Entry
+  {
+    private final List<String> _key;
+    private final URLClassLoader _loader;
+    private int _refCount;
+
+    Entry( List<String> key, URLClassLoader loader )
+    {
+      _key = key;
+      _loader = loader;
+    }
+  }
+}
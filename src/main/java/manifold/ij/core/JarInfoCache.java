@@ -0,0 +1,137 @@
+/*
+ * Manifold
+ */
+
+package manifold.ij.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import manifold.api.fs.IDirectory;
+import manifold.api.fs.IFileUtil;
+
+/**
+ * Caches what module definition derives from classpath jars: the manifest's Class-Path entries and whether the jar
+ * has sources. Jars are shared by most modules and don't change between resets, entries are keyed by the jar's path
+ * and are dropped when its size or time stamp changes. Shared by all projects.
+ */
+class JarInfoCache
+{
+  private static final Map<String, Info> CACHE = new ConcurrentHashMap<>();
+
+  /**
+   * @return The files listed in the Class-Path attribute of the jar's manifest
+   */
+  static List<File> getManifestClassPath( File jar, JarFile jarFile )
+  {
+    Info info = getInfo( jar );
+    List<File> classPath = info._classPath;
+    if( classPath == null )
+    {
+      info._classPath = classPath = readManifestClassPath( jarFile );
+    }
+    return classPath;
+  }
+
+  /**
+   * @see IFileUtil#hasSourceFiles(IDirectory)
+   */
+  static boolean hasSourceFiles( IDirectory root )
+  {
+    File file = root.toJavaFile();
+    if( !file.isFile() )
+    {
+      // a directory's content can change without its time stamp changing
+      return IFileUtil.hasSourceFiles( root );
+    }
+
+    Info info = getInfo( file );
+    Boolean hasSources = info._hasSources;
+    if( hasSources == null )
+    {
+      info._hasSources = hasSources = IFileUtil.hasSourceFiles( root );
+    }
+    return hasSources;
+  }
+
+  private static Info getInfo( File jar )
+  {
+    String path = jar.getAbsolutePath();
+    long length = jar.length();
+    long lastModified = jar.lastModified();
+    Info info = CACHE.get( path );
+    if( info == null || info._length != length || info._lastModified != lastModified )
+    {
+      info = new Info( length, lastModified );
+      CACHE.put( path, info );
+    }
+    return info;
+  }
+
+  private static List<File> readManifestClassPath( JarFile jarFile )
+  {
+    try
+    {
+      Manifest manifest = jarFile.getManifest();
+      if( manifest == null )
+      {
+        return Collections.emptyList();
+      }
+      Attributes man = manifest.getMainAttributes();
+      String paths = man.getValue( Attributes.Name.CLASS_PATH );
+      if( paths == null || paths.isEmpty() )
+      {
+        return Collections.emptyList();
+      }
+
+      // We found a Jar with a Class-Path listing.
+      // Note sometimes happens when running from IntelliJ where the
+      // classpath would otherwise make the command line to java.exe
+      // too long.
+      List<File> files = new ArrayList<>();
+      for( String j : paths.split( " " ) )
+      {
+        URL url;
+        try
+        {
+          url = new URL( j );
+        }
+        catch( MalformedURLException e )
+        {
+          //Class-Path contained an invalid URL, skip it
+          continue;
+        }
+        files.add( new File( url.toURI() ) );
+      }
+      return files;
+    }
+    catch( IOException | URISyntaxException e )
+    {
+      throw new RuntimeException( e );
+    }
+  }
+
+  private static class Info
+  {
+    private final long _length;
+    private final long _lastModified;
+    private volatile List<File> _classPath;
+    private volatile Boolean _hasSources;
+
+    Info( long length, long lastModified )
+    {
+      _length = length;
+      _lastModified = lastModified;
+    }
+  }
+}
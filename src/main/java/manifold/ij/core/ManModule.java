@@ -5,12 +5,16 @@ import com.intellij.openapi.project.Project;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.stream.Collectors;
 import manifold.api.fs.IDirectory;
 import manifold.api.fs.IFile;
 import manifold.api.fs.IFileSystem;
@@ -19,6 +23,7 @@ import manifold.api.type.ITypeManifold;
 import manifold.api.type.ResourceFileTypeManifold;
 import manifold.api.type.TypeName;
 import manifold.ext.IExtensionClassProducer;
+import manifold.ij.util.FP64;
 import manifold.internal.host.SimpleModule;
 import manifold.util.JsonUtil;
 
@@ -26,11 +31,20 @@ import manifold.util.JsonUtil;
  */
 public class ManModule extends SimpleModule
 {
+  private static final String TYPE_MANIFOLD_SERVICE = "META-INF/services/" + ITypeManifold.class.getName();
+
   private ManProject _manProject;
   private Module _ijModule;
   private List<Dependency> _dependencies;
   private List<IDirectory> _excludedDirs;
+  private List<IDirectory> _expandedClasspath;
   private URLClassLoader _typeManifoldClassLoader;
+  private FP64 _fingerprint;
+  private String _snapshotKey;
+  private volatile List<IDirectory> _collectiveJavaClassPath;
+  private volatile List<IDirectory> _collectiveSourcePath;
+  private volatile List<IDirectory> _exportedJavaClassPath;
+  private volatile boolean _typeManifoldsInitialized;
 
   ManModule( ManProject manProject, Module ijModule, List<IDirectory> classpath, List<IDirectory> sourcePath, List<IDirectory> outputPath, List<IDirectory> excludedDirs )
   {
@@ -38,6 +52,7 @@ public class ManModule extends SimpleModule
     _ijModule = ijModule;
     _manProject = manProject;
     _excludedDirs = excludedDirs;
+    _expandedClasspath = new ArrayList<>( classpath );
     _dependencies = new ArrayList<>();
   }
 
@@ -58,6 +73,35 @@ public class ManModule extends SimpleModule
     return this;
   }
 
+  /**
+   * @return The fingerprint of the IntelliJ module configuration this module was defined from
+   */
+  public FP64 getFingerprint()
+  {
+    return _fingerprint;
+  }
+  void setFingerprint( FP64 fingerprint )
+  {
+    _fingerprint = fingerprint;
+  }
+
+  String getSnapshotKey()
+  {
+    return _snapshotKey;
+  }
+  void setSnapshotKey( String snapshotKey )
+  {
+    _snapshotKey = snapshotKey;
+  }
+
+  /**
+   * @return The classpath before removing the paths already provided by dependencies
+   */
+  List<IDirectory> getExpandedClassPath()
+  {
+    return _expandedClasspath;
+  }
+
   public List<Dependency> getDependencies()
   {
     return _dependencies;
@@ -65,6 +109,7 @@ public class ManModule extends SimpleModule
   void addDependency( Dependency dependency )
   {
     _dependencies.add( dependency );
+    invalidateCollectivePaths();
   }
 
   @Override
@@ -89,6 +134,32 @@ public class ManModule extends SimpleModule
     return getProject().getFileSystem();
   }
 
+  /**
+   * Type manifolds are loaded on first use, most modules in a large project never reference a manifold type.
+   */
+  @Override
+  public void initializeTypeManifolds()
+  {
+    if( !_typeManifoldsInitialized )
+    {
+      synchronized( this )
+      {
+        if( !_typeManifoldsInitialized )
+        {
+          super.initializeTypeManifolds();
+          _typeManifoldsInitialized = true;
+        }
+      }
+    }
+  }
+
+  @Override
+  public Set<ITypeManifold> getTypeManifolds()
+  {
+    initializeTypeManifolds();
+    return super.getTypeManifolds();
+  }
+
   @SuppressWarnings("Duplicates")
   @Override
   public Set<ITypeManifold> findTypeManifoldsFor( String fqn )
@@ -97,6 +168,7 @@ public class ManModule extends SimpleModule
   }
   private Set<ITypeManifold> findTypeManifoldsFor( String fqn, ManModule root )
   {
+    initializeTypeManifolds();
     Set<ITypeManifold> sps = super.findTypeManifoldsFor( fqn );
     if( !sps.isEmpty() )
     {
@@ -121,6 +193,7 @@ public class ManModule extends SimpleModule
   }
   private Set<ITypeManifold> findTypeManifoldsFor( IFile file, ManModule root )
   {
+    initializeTypeManifolds();
     Set<ITypeManifold> sps = super.findTypeManifoldsFor( file );
     if( !sps.isEmpty() )
     {
@@ -140,6 +213,7 @@ public class ManModule extends SimpleModule
   @Override
   public Set<TypeName> getChildrenOfNamespace( String packageName )
   {
+    initializeTypeManifolds();
     Set<TypeName> all = new HashSet<>();
     Set<TypeName> children = super.getChildrenOfNamespace( packageName );
     if( children != null )
@@ -160,13 +234,19 @@ public class ManModule extends SimpleModule
   /**
    * Override to add the source providers that may be in the Module's classpath.
    * Note we create a classloader per module exclusively to load source providers
-   * from the module's classpath.
+   * from the module's classpath. Modules without a registered type manifold on
+   * their classpath skip the classloader and the service lookup altogether.
    *
    * @see #initializeModuleClassLoader()
    */
   @Override
   public void loadRegistered( Set<ITypeManifold> sps )
   {
+    if( !hasRegisteredTypeManifolds() )
+    {
+      return;
+    }
+
     initializeModuleClassLoader();
     ClassLoader oldLoader = Thread.currentThread().getContextClassLoader();
     if( _typeManifoldClassLoader != null )
@@ -183,15 +263,41 @@ public class ManModule extends SimpleModule
     }
   }
 
+  /**
+   * Type manifolds are registered as services, probing the classpath for the service file is cheap compared with
+   * creating a classloader and scanning it with the ServiceLoader
+   */
+  private boolean hasRegisteredTypeManifolds()
+  {
+    List<IDirectory> classpath = getCollectiveJavaClassPath();
+    if( classpath == null )
+    {
+      return false;
+    }
+    for( IDirectory dir : classpath )
+    {
+      if( dir.exists() && dir.file( TYPE_MANIFOLD_SERVICE ).exists() )
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
   private void initializeModuleClassLoader()
   {
+    if( _typeManifoldClassLoader != null )
+    {
+      return;
+    }
+
     List<IDirectory> classpath = getCollectiveJavaClassPath();
     if( classpath == null || classpath.isEmpty() )
     {
       return;
     }
 
-    URL[] urls = classpath.stream().map(
+    List<URL> urls = classpath.stream().map(
       dir ->
       {
         try
@@ -202,46 +308,133 @@ public class ManModule extends SimpleModule
         {
           throw new RuntimeException( e );
         }
-      } ).toArray( URL[]::new );
+      } ).collect( Collectors.toList() );
+
+    // note this classloader is used exclusively for finding a loading type manifold services,
+    // modules having the same classpath share it
+    _typeManifoldClassLoader = getProject().getClassLoaderPool().acquire( urls, getClass().getClassLoader() );
+  }
+
+  /**
+   * Called when this module replaces {@code replaced} in the module graph. If the replaced module had a loader, this
+   * module acquires one now, the shared loader if the classpath is unchanged.
+   */
+  void inheritClassLoader( ManModule replaced )
+  {
+    if( replaced._typeManifoldClassLoader != null )
+    {
+      // same lock as initializeTypeManifolds(), which may already be loading services with the loader
+      synchronized( this )
+      {
+        initializeModuleClassLoader();
+      }
+    }
+  }
 
-    // note this classloader is used exclusively for finding a loading type manifold services
-    _typeManifoldClassLoader = new URLClassLoader( urls, getClass().getClassLoader() );
+  /**
+   * Called when this module is discarded from the module graph
+   */
+  void releaseClassLoader()
+  {
+    if( _typeManifoldClassLoader != null )
+    {
+      getProject().getClassLoaderPool().release( _typeManifoldClassLoader );
+      _typeManifoldClassLoader = null;
+    }
   }
 
   @Override
   public List<IDirectory> getCollectiveSourcePath()
   {
-    List<IDirectory> all = new ArrayList<>();
-    all.addAll( getSourcePath() );
-
-    for( Dependency d : getDependencies() )
+    List<IDirectory> collective = _collectiveSourcePath;
+    if( collective == null )
     {
-      if( d.isExported() )
+      Set<IDirectory> all = new LinkedHashSet<>( getSourcePath() );
+      for( Dependency d : getDependencies() )
       {
-        all.addAll( d.getModule().getSourcePath() );
+        if( d.isExported() )
+        {
+          all.addAll( d.getModule().getSourcePath() );
+        }
       }
+      _collectiveSourcePath = collective = Collections.unmodifiableList( new ArrayList<>( all ) );
     }
-    return all;
+    return collective;
   }
 
   @Override
   public List<IDirectory> getCollectiveJavaClassPath()
   {
-    return getCollectiveJavaClassPath( this );
+    List<IDirectory> collective = _collectiveJavaClassPath;
+    if( collective == null )
+    {
+      Set<IDirectory> all = new LinkedHashSet<>( getJavaClassPath() );
+      for( Dependency d : getDependencies() )
+      {
+        all.addAll( ((ManModule)d.getModule()).getExportedJavaClassPath() );
+      }
+      _collectiveJavaClassPath = collective = Collections.unmodifiableList( new ArrayList<>( all ) );
+    }
+    return collective;
   }
-  private List<IDirectory> getCollectiveJavaClassPath( ManModule root )
+
+  /**
+   * @return This module's classpath and the classpaths of the modules it exports, transitively. This is what a module
+   * depending on this module sees.
+   */
+  private List<IDirectory> getExportedJavaClassPath()
   {
-    List<IDirectory> all = new ArrayList<>();
-    all.addAll( getJavaClassPath() );
+    List<IDirectory> exported = _exportedJavaClassPath;
+    if( exported == null )
+    {
+      Set<IDirectory> all = new LinkedHashSet<>();
+      for( ManModule module : getExportClosure() )
+      {
+        all.addAll( module.getJavaClassPath() );
+      }
+      _exportedJavaClassPath = exported = Collections.unmodifiableList( new ArrayList<>( all ) );
+    }
+    return exported;
+  }
 
-    for( Dependency d : getDependencies() )
+  private Set<ManModule> getExportClosure()
+  {
+    Set<ManModule> closure = new LinkedHashSet<>();
+    Deque<ManModule> queue = new ArrayDeque<>();
+    queue.add( this );
+    while( !queue.isEmpty() )
     {
-      if( this == root || d.isExported() )
+      ManModule module = queue.removeFirst();
+      if( closure.add( module ) )
       {
-        all.addAll( ((ManModule)d.getModule()).getCollectiveJavaClassPath( root ) );
+        for( Dependency d : module.getDependencies() )
+        {
+          if( d.isExported() )
+          {
+            queue.add( (ManModule)d.getModule() );
+          }
+        }
       }
     }
-    return all;
+    return closure;
+  }
+
+  @Override
+  public void setJavaClassPath( List<IDirectory> classpath )
+  {
+    super.setJavaClassPath( classpath );
+    invalidateCollectivePaths();
+  }
+
+  /**
+   * The collective paths are derived from the module graph, which is immutable once defined. Only modules being
+   * defined change and they invalidate their own views.
+   */
+  private void invalidateCollectivePaths()
+  {
+    _collectiveJavaClassPath = null;
+    _collectiveSourcePath = null;
+    _exportedJavaClassPath = null;
   }
 
   public String[] getTypesForFile( IFile file )
@@ -265,7 +458,8 @@ public class ManModule extends SimpleModule
   // mapped to the old name, hence the raw processing here.
   private void addFromPath( IFile file, Set<String> result )
   {
-    List<IDirectory> sourcePath = getSourcePath();
+    ModuleRootIndex rootIndex = getProject().getRootIndex();
+    List<IDirectory> sourcePath = rootIndex.isIndexed( this ) ? rootIndex.findSourceRoots( this, file ) : getSourcePath();
     for( IDirectory src : sourcePath )
     {
       if( file.isDescendantOf( src ) )
@@ -288,43 +482,31 @@ public class ManModule extends SimpleModule
   /** reduce redundancy, remove paths that exist in dependencies */
   void reduceClasspath( Set<ManModule> visited )
   {
-    if( visited.contains( this ) )
+    if( !visited.add( this ) )
     {
       return;
     }
-    visited.add( this );
 
-    List<IDirectory> classpath = getJavaClassPath();
+    Set<IDirectory> provided = new HashSet<>();
     for( Dependency dep: getDependencies() )
     {
       ManModule depMod = (ManModule)dep.getModule();
       depMod.reduceClasspath( visited );
-      classpath.removeIf( depMod::hasPath );
+      for( ManModule module : depMod.getExportClosure() )
+      {
+        provided.addAll( module.getJavaClassPath() );
+      }
     }
-
-    setJavaClassPath( classpath );
-  }
-
-  private boolean hasPath( IDirectory directory )
-  {
-    List<IDirectory> classpath = getJavaClassPath();
-    if( classpath.contains( directory ) )
+    if( provided.isEmpty() )
     {
-      return true;
+      return;
     }
 
-    for( Dependency dep: getDependencies() )
+    List<IDirectory> classpath = new ArrayList<>( getJavaClassPath() );
+    if( classpath.removeIf( provided::contains ) )
     {
-      if( dep.isExported() )
-      {
-        ManModule depMod = (ManModule)dep.getModule();
-        if( depMod.hasPath( directory ) )
-        {
-          return true;
-        }
-      }
+      setJavaClassPath( classpath );
     }
-    return false;
   }
 
   @Override
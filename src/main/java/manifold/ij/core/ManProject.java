@@ -3,11 +3,17 @@ package manifold.ij.core;
 import com.intellij.ProjectTopics;
 import com.intellij.compiler.impl.javaCompiler.javac.JavacConfiguration;
 import com.intellij.compiler.server.BuildManagerListener;
+import com.intellij.concurrency.JobLauncher;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.compiler.CompilerPaths;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.module.Module;
 import com.intellij.openapi.module.ModuleManager;
 import com.intellij.openapi.module.ModuleUtil;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.projectRoots.Sdk;
 import com.intellij.openapi.roots.DependencyScope;
@@ -18,30 +24,39 @@ import com.intellij.openapi.roots.OrderEntry;
 import com.intellij.openapi.roots.OrderRootType;
 import com.intellij.openapi.roots.ProjectRootManager;
 import com.intellij.openapi.roots.libraries.Library;
+import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.VirtualFileManager;
 import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiManager;
 import com.intellij.psi.impl.PsiDocumentTransactionListener;
+import com.intellij.psi.impl.PsiModificationTrackerImpl;
 import com.intellij.util.PathsList;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.messages.MessageBusConnection;
 import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.jar.Attributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.jar.JarFile;
-import java.util.jar.Manifest;
 import java.util.stream.Collectors;
 import manifold.api.fs.IDirectory;
-import manifold.api.fs.IFileUtil;
 import manifold.api.fs.jar.JarFileDirectoryImpl;
 import manifold.api.host.Dependency;
 import manifold.api.host.IModule;
@@ -52,23 +67,31 @@ import manifold.ij.extensions.ModuleClasspathListener;
 import manifold.ij.extensions.ModuleRefreshListener;
 import manifold.ij.fs.IjFile;
 import manifold.ij.fs.IjFileSystem;
+import manifold.ij.util.FP64;
 import manifold.internal.host.ManifoldHost;
 import manifold.util.concurrent.ConcurrentWeakHashMap;
-import manifold.util.concurrent.LockingLazyVar;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.jps.model.java.compiler.JpsJavaCompilerOptions;
 
 /**
  */
 public class ManProject
 {
+  private static final Logger LOG = Logger.getInstance( ManProject.class );
   private static final Map<Project, ManProject> PROJECTS = new ConcurrentWeakHashMap<>();
   private static final String JAR_INDICATOR = ".jar!";
   private static final String XPLUGIN_MANIFOLD = "-Xplugin:Manifold";
   private static final String XPLUGIN_MANIFOLD_WITH_QUOTES = "-Xplugin:\"Manifold";
 
   private final Project _ijProject;
+  private final ClassLoaderPool _classLoaderPool;
+  private final ExecutorService _snapshotExecutor = AppExecutorUtil.createBoundedApplicationPoolExecutor( "Manifold Module Snapshot", 1 );
   private IjFileSystem _fs;
-  private LockingLazyVar<List<ManModule>> _modules;
+  private volatile Map<String, IDirectory> _classpathDirs;
+  private final Object _graphLock = new Object();
+  private volatile ModuleGraph _graph;
+  private volatile boolean _initializing;
+  private volatile boolean _graphStale;
   private MessageBusConnection _projectConnection;
   private MessageBusConnection _applicationConnection;
   private MessageBusConnection _permanentProjectConnection;
@@ -95,15 +118,21 @@ public class ManProject
     return getProject( project );
   }
 
+  /**
+   * @return The ManModule for {@code module}, or null while the project is not ready
+   */
   public static ManModule getModule( Module module )
   {
     ManProject manProject = getProject( module.getProject() );
-    for( ManModule mm : manProject.getModules() )
+    if( manProject == null || !manProject.isReady() )
     {
-      if( mm.getIjModule().equals( module ) )
-      {
-        return mm;
-      }
+      return null;
+    }
+
+    ManModule mm = manProject.getModuleGraph().getModule( module );
+    if( mm != null )
+    {
+      return mm;
     }
 
     // The module may not yet be committed to the project
@@ -158,22 +187,142 @@ public class ManProject
   public ManProject( Project project )
   {
     _ijProject = project;
+    _classLoaderPool = new ClassLoaderPool();
   }
 
   private void init()
   {
     _fs = new IjFileSystem( this );
-    _modules = LockingLazyVar.make( () -> ApplicationManager.getApplication().<List<ManModule>>runReadAction( this::defineModules ) );
-    addCompilerArgs(); // in case manifold jar was added we might need to update compiler args
+    _classpathDirs = new ConcurrentHashMap<>();
   }
 
-  public void reset()
+  /**
+   * Update the compiler arguments and mark the module graph for update after a roots or modules change. Only the
+   * modules whose IntelliJ configuration changed since they were defined are rebuilt, along with the modules depending
+   * on them, on the next access to the graph. All other modules keep their initialized type manifolds and cached types.
+   */
+  public void update()
   {
-    ApplicationManager.getApplication().runReadAction(
-      () -> {
-        init();
-        _fileModificationManager.getManRefresher().nukeFromOrbit();
-      } );
+    ApplicationManager.getApplication().runReadAction( this::addCompilerArgs );
+    if( isReady() )
+    {
+      // fingerprinting and rebuilding modules is left out of the write action changing the roots
+      _graphStale = true;
+    }
+    // otherwise the graph being defined in the background reads the current configuration
+  }
+
+  private ModuleGraph updateModuleGraph()
+  {
+    synchronized( _graphLock )
+    {
+      if( _graphStale )
+      {
+        _graphStale = false;
+        updateModules();
+      }
+      return _graph;
+    }
+  }
+
+  private void updateModules()
+  {
+    List<ManModule> oldModules = _graph.getModules();
+    Map<Module, ManModule> old = new HashMap<>();
+    for( ManModule module : oldModules )
+    {
+      old.put( module.getIjModule(), module );
+    }
+
+    Module[] allIjModules = ModuleManager.getInstance( _ijProject ).getModules();
+    Map<Module, List<Module>> dependents = new HashMap<>();
+    Deque<Module> changed = new ArrayDeque<>();
+    for( Module ijModule : allIjModules )
+    {
+      for( Module child : ModuleRootManager.getInstance( ijModule ).getDependencies() )
+      {
+        dependents.computeIfAbsent( child, k -> new ArrayList<>() ).add( ijModule );
+      }
+      ManModule module = old.get( ijModule );
+      if( module == null || !ModuleClasspathListener.computeModuleFingerprint( ijModule ).equals( module.getFingerprint() ) )
+      {
+        changed.add( ijModule );
+      }
+    }
+    if( changed.isEmpty() && old.size() == allIjModules.length )
+    {
+      return;
+    }
+
+    // a module depending on a rebuilt module must be rebuilt too, it links to the ManModule
+    Set<Module> dirty = new HashSet<>();
+    while( !changed.isEmpty() )
+    {
+      Module ijModule = changed.pop();
+      if( dirty.add( ijModule ) )
+      {
+        changed.addAll( dependents.getOrDefault( ijModule, Collections.emptyList() ) );
+      }
+    }
+
+    Map<Module, ManModule> modules = new HashMap<>( createModules( new ArrayList<>( dirty ), null, new HashSet<>() ) );
+    List<ManModule> allModules = new ArrayList<>();
+    List<ManModule> rebuilt = new ArrayList<>();
+    for( Module ijModule : allIjModules )
+    {
+      ManModule module = dirty.contains( ijModule ) ? modules.get( ijModule ) : old.get( ijModule );
+      modules.put( ijModule, module );
+      allModules.add( module );
+      if( dirty.contains( ijModule ) )
+      {
+        rebuilt.add( module );
+      }
+    }
+
+    for( ManModule module : rebuilt )
+    {
+      addModuleDependencies( modules, module );
+    }
+
+    // unchanged modules are already reduced
+    Set<ManModule> visited = new HashSet<>( allModules );
+    visited.removeAll( rebuilt );
+    for( ManModule module : rebuilt )
+    {
+      module.reduceClasspath( visited );
+    }
+
+    publishGraph( new ModuleGraph( allModules ) );
+
+    // a rebuilt module acquires its loader before the module it replaces releases its own, so a loader is closed only
+    // if no module of the new graph uses its classpath
+    for( ManModule module : rebuilt )
+    {
+      ManModule replaced = old.get( module.getIjModule() );
+      if( replaced != null )
+      {
+        module.inheritClassLoader( replaced );
+      }
+    }
+    List<ManModule> obsolete = new ArrayList<>( oldModules );
+    obsolete.removeAll( allModules );
+    obsolete.forEach( ManModule::releaseClassLoader );
+
+    // types of the replaced modules are gone, anything else cached from the old roots is stale
+    _fileModificationManager.getManRefresher().refreshedModules( obsolete );
+
+    saveSnapshot( allModules );
+
+    LOG.info( "Manifold: rebuilt " + rebuilt.size() + " of " + allModules.size() + " modules" );
+  }
+
+  private void saveSnapshot( List<ManModule> modules )
+  {
+    if( !ApplicationManager.getApplication().isUnitTestMode() )
+    {
+      // in order, the snapshot of the latest graph is written last
+      _snapshotExecutor.execute( () -> ModuleSnapshot.save( _ijProject, modules ) );
+    }
   }
 
   public IjFileSystem getFileSystem()
@@ -181,14 +330,77 @@ public class ManProject
     return _fs;
   }
 
+  ClassLoaderPool getClassLoaderPool()
+  {
+    return _classLoaderPool;
+  }
+
   public Project getNativeProject()
   {
     return _ijProject;
   }
 
+  /**
+   * @return False while the module graph is being defined in the background after the project opened. Until then
+   * the plugin answers queries as if the project had no modules.
+   */
+  public boolean isReady()
+  {
+    return _graph != null || !_initializing;
+  }
+
+  public static boolean isReady( Project project )
+  {
+    ManProject manProject = getProject( project );
+    return manProject != null && manProject.isReady();
+  }
+
+  /**
+   * @return The current module graph, defining it on first access and updating it on the first access after a
+   * roots change. An empty graph while the project is not ready.
+   */
+  public ModuleGraph getModuleGraph()
+  {
+    ModuleGraph graph = _graph;
+    if( graph == null )
+    {
+      if( _initializing )
+      {
+        return ModuleGraph.EMPTY;
+      }
+
+      synchronized( _graphLock )
+      {
+        graph = _graph;
+        if( graph == null )
+        {
+          // defined from the current configuration
+          _graphStale = false;
+          graph = ApplicationManager.getApplication().runReadAction(
+            (Computable<ModuleGraph>)() -> new ModuleGraph( defineModules() ) );
+          publishGraph( graph );
+        }
+      }
+    }
+    else if( _graphStale )
+    {
+      // the read action is taken before the lock, a write action can't start while the graph is updated
+      graph = ApplicationManager.getApplication().runReadAction( (Computable<ModuleGraph>)this::updateModuleGraph );
+    }
+    return graph;
+  }
+
   public List<ManModule> getModules()
   {
-    return _modules.get();
+    return getModuleGraph().getModules();
+  }
+
+  /**
+   * @return An index of the modules' source and output roots, for finding the modules a file matters to
+   */
+  public ModuleRootIndex getRootIndex()
+  {
+    return getModuleGraph().getRootIndex();
   }
 
   void projectOpened()
@@ -202,13 +414,91 @@ public class ManProject
     addModuleClasspathListener();
     addHotSwapComponent();
     addStaleClassCleaner();
-    addCompilerArgs();
+  }
+
+  /**
+   * Define the module graph and update the compiler arguments off the startup path. The project is not ready until
+   * the task finishes, if it is cancelled the graph is defined on first access instead.
+   */
+  void initializeInBackground()
+  {
+    if( ApplicationManager.getApplication().isUnitTestMode() )
+    {
+      ApplicationManager.getApplication().runReadAction( this::addCompilerArgs );
+      getModuleGraph();
+      return;
+    }
+
+    _initializing = true;
+    ProgressManager.getInstance().run( new Task.Backgroundable( _ijProject, "Initializing Manifold", true )
+    {
+      @Override
+      public void run( @NotNull ProgressIndicator indicator )
+      {
+        indicator.setIndeterminate( false );
+        indicator.setText( "Updating compiler arguments" );
+        ApplicationManager.getApplication().runReadAction( ManProject.this::addCompilerArgs );
+        while( !ProgressIndicatorUtils.runInReadActionWithWriteActionPriority( ManProject.this::publishModuleGraph, indicator ) )
+        {
+          // a write action interrupted the read action, the graph is defined again when it completes
+          indicator.checkCanceled();
+          ProgressIndicatorUtils.yieldToPendingWriteActions();
+        }
+      }
+
+      @Override
+      public void onFinished()
+      {
+        _initializing = false;
+        if( !_ijProject.isDisposed() )
+        {
+          // answers given while not ready are stale
+          ((PsiModificationTrackerImpl)PsiManager.getInstance( _ijProject ).getModificationTracker()).incCounter();
+        }
+      }
+    } );
+  }
+
+  /**
+   * Publish {@code graph}, the interned classpath directories are reduced to the existing directories its modules
+   * use. Directories only replaced modules used are dropped, as are directories of paths that did not exist, e.g.
+   * output directories created later.
+   */
+  private void publishGraph( ModuleGraph graph )
+  {
+    Map<String, IDirectory> dirs = new ConcurrentHashMap<>();
+    for( ManModule module : graph.getModules() )
+    {
+      for( IDirectory dir : module.getJavaClassPath() )
+      {
+        if( dir.exists() )
+        {
+          dirs.put( dir.toJavaFile().getAbsolutePath(), dir );
+        }
+      }
+    }
+    _classpathDirs = dirs;
+    _graph = graph;
+  }
+
+  private void publishModuleGraph()
+  {
+    synchronized( _graphLock )
+    {
+      if( _graph == null )
+      {
+        _graphStale = false;
+        publishGraph( new ModuleGraph( defineModules() ) );
+      }
+    }
   }
 
   private void addStaleClassCleaner()
   {
+    ManStaleClassCleaner cleaner = new ManStaleClassCleaner( this );
+    _fileModificationManager.getManRefresher().addTypeLoaderListenerAsWeakRef( cleaner );
     MessageBusConnection connection = _ijProject.getMessageBus().connect( _ijProject );
-    connection.subscribe( BuildManagerListener.TOPIC, new ManStaleClassCleaner() );
+    connection.subscribe( BuildManagerListener.TOPIC, cleaner );
    }
 
   private void addCompilerArgs()
@@ -312,6 +602,7 @@ public class ManProject
     _projectConnection = null;
     PROJECTS.remove( getNativeProject() );
     _fileModificationManager.getManRefresher().nukeFromOrbit();
+    _classLoaderPool.closeAll();
   }
 
   private void addTypeRefreshListener() {
@@ -333,16 +624,7 @@ public class ManProject
 
   public List<ManModule> findRootModules()
   {
-    List<ManModule> roots = new ArrayList<>( getModules() );
-    for( ManModule module : new ArrayList<>( roots ) )
-    {
-      for( Dependency d : module.getDependencies() )
-      {
-        //noinspection SuspiciousMethodCalls
-        roots.remove( d.getModule() );
-      }
-    }
-    return roots;
+    return getModuleGraph().getRoots();
   }
 
   private List<ManModule> defineModules()
@@ -350,14 +632,14 @@ public class ManProject
     ModuleManager moduleManager = ModuleManager.getInstance( _ijProject );
     Module[] allIjModules = moduleManager.getModules();
 
-    // create modules
-    Map<Module, ManModule> modules = new HashMap<>();
+    // create modules, restoring the ones whose configuration is unchanged since the last session
+    ModuleSnapshot snapshot = ApplicationManager.getApplication().isUnitTestMode() ? null : ModuleSnapshot.load( _ijProject );
+    Set<ManModule> restored = ContainerUtil.newConcurrentSet();
+    Map<Module, ManModule> modules = createModules( Arrays.asList( allIjModules ), snapshot, restored );
     List<ManModule> allModules = new ArrayList<>();
     for( Module ijModule : allIjModules )
     {
-      final ManModule module = defineModule( ijModule );
-      modules.put( ijModule, module );
-      allModules.add( module );
+      allModules.add( modules.get( ijModule ) );
     }
 
     // add module dependencies
@@ -366,22 +648,96 @@ public class ManProject
       addModuleDependencies( modules, modules.get( ijModule ) );
     }
 
-    // reduce classpaths
+    // reduce classpaths, restored modules keep their reduced classpath if their dependencies are restored too
     Set<ManModule> visited = new HashSet<>();
     for( ManModule manModule: allModules )
     {
-      manModule.reduceClasspath( visited );
+      if( isRestoredClosure( manModule, restored, new HashSet<>() ) )
+      {
+        manModule.setJavaClassPath( snapshot.get( manModule.getName(), manModule.getSnapshotKey() ).getReducedClasspath( _fs ) );
+        visited.add( manModule );
+      }
     }
-
-    // finally, initialize the type manifolds for each module
     for( ManModule manModule: allModules )
     {
-      manModule.initializeTypeManifolds();
+      manModule.reduceClasspath( visited );
     }
 
+    saveSnapshot( allModules );
+    LOG.info( "Manifold: restored " + restored.size() + " of " + allModules.size() + " modules from snapshot" );
+
     return allModules;
   }
 
+  private static boolean isRestoredClosure( ManModule module, Set<ManModule> restored, Set<ManModule> visited )
+  {
+    if( !visited.add( module ) )
+    {
+      return true;
+    }
+    if( !restored.contains( module ) )
+    {
+      return false;
+    }
+    for( Dependency d : module.getDependencies() )
+    {
+      if( !isRestoredClosure( (ManModule)d.getModule(), restored, visited ) )
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Create modules concurrently, expanding and scanning a module's classpath is independent of other modules
+   */
+  private Map<Module, ManModule> createModules( List<Module> ijModules, ModuleSnapshot snapshot, Set<ManModule> restored )
+  {
+    ProgressIndicator progress = ProgressManager.getInstance().getProgressIndicator();
+    if( progress != null )
+    {
+      progress.setText( "Defining Manifold modules" );
+    }
+
+    Map<Module, ManModule> modules = new ConcurrentHashMap<>();
+    AtomicInteger count = new AtomicInteger();
+    processConcurrently( ijModules, progress, modules::containsKey,
+      ijModule -> {
+        modules.putIfAbsent( ijModule, defineModule( ijModule, snapshot, restored ) );
+        updateFraction( progress, count.incrementAndGet(), ijModules.size() );
+      } );
+    return modules;
+  }
+
+  private <T> void processConcurrently( List<T> items, ProgressIndicator progress, Predicate<T> isDone, Consumer<T> processor )
+  {
+    if( !JobLauncher.getInstance().invokeConcurrentlyUnderProgress( items, progress, true,
+      item -> {
+        processor.accept( item );
+        return true;
+      } ) )
+    {
+      // A write action is pending and workers could not get read access, this thread has it already
+      for( T item: items )
+      {
+        ProgressManager.checkCanceled();
+        if( !isDone.test( item ) )
+        {
+          processor.accept( item );
+        }
+      }
+    }
+  }
+
+  private static void updateFraction( ProgressIndicator progress, int done, int total )
+  {
+    if( progress != null && !progress.isIndeterminate() )
+    {
+      progress.setFraction( (double)done / total );
+    }
+  }
+
   private void addModuleDependencies( Map<Module, ManModule> modules, ManModule manModule )
   {
     Module ijModule = manModule.getIjModule();
@@ -419,11 +775,51 @@ public class ManProject
 
   private ManModule defineModule( Module ijModule )
   {
-    List<VirtualFile> sourceFolders = getSourceRoots( ijModule );
+    return defineModule( ijModule, null, null );
+  }
+
+  private ManModule defineModule( Module ijModule, ModuleSnapshot snapshot, Set<ManModule> restored )
+  {
     VirtualFile outputPath = CompilerPaths.getModuleOutputDirectory( ijModule, false );
-    return createModule( ijModule, getInitialClasspaths( ijModule ),
-                         sourceFolders.stream().map( this::toDirectory ).collect( Collectors.toList() ),
-                         outputPath == null ? null : getFileSystem().getIDirectory( outputPath ) );
+    IDirectory outputDir = outputPath == null ? null : getFileSystem().getIDirectory( outputPath );
+    FP64 fingerprint = ModuleClasspathListener.computeModuleFingerprint( ijModule );
+    List<IDirectory> classpath = getInitialClasspaths( ijModule );
+    String snapshotKey = ModuleSnapshot.makeKey( fingerprint, classpath );
+
+    ManModule module = snapshot == null ? null : restoreModule( ijModule, snapshot.get( ijModule.getName(), snapshotKey ), outputDir );
+    if( module != null )
+    {
+      restored.add( module );
+    }
+    else
+    {
+      List<VirtualFile> sourceFolders = getSourceRoots( ijModule );
+      module = createModule( ijModule, classpath,
+                             sourceFolders.stream().map( this::toDirectory ).collect( Collectors.toList() ),
+                             outputDir );
+    }
+    module.setFingerprint( fingerprint );
+    module.setSnapshotKey( snapshotKey );
+    return module;
+  }
+
+  private ManModule restoreModule( Module ijModule, ModuleSnapshot.Entry entry, IDirectory outputPath )
+  {
+    if( entry == null )
+    {
+      return null;
+    }
+    try
+    {
+      return new ManModule( this, ijModule, entry.getClasspath( _fs ), entry.getSourcePath( _fs ),
+                            Collections.singletonList( outputPath ), getExcludedFolders( ijModule ) );
+    }
+    catch( RuntimeException e )
+    {
+      // e.g., a jar can no longer be opened, define the module from scratch
+      LOG.warn( "Manifold: failed to restore module " + ijModule.getName() + " from snapshot", e );
+      return null;
+    }
   }
 
   private ManModule createModule( Module ijModule, List<IDirectory> classpath, List<IDirectory> sourcePaths, IDirectory outputPath )
@@ -445,7 +841,7 @@ public class ManProject
     for( IDirectory root : paths )
     {
       // roots without manifests are considered source roots
-      if( IFileUtil.hasSourceFiles( root ) )
+      if( JarInfoCache.hasSourceFiles( root ) )
       {
         if( !roots.contains( root ) )
         {
@@ -499,46 +895,15 @@ public class ManProject
       if( root instanceof JarFileDirectoryImpl )
       {
         JarFile jarFile = ((JarFileDirectoryImpl)root).getJarFile();
-        try
+        for( File dirOrJar : JarInfoCache.getManifestClassPath( root.toJavaFile(), jarFile ) )
         {
-          Manifest manifest = jarFile.getManifest();
-          if( manifest != null )
+          // Add each of the paths to our classpath
+          IDirectory idir = getClasspathDirectory( dirOrJar );
+          if( !newClasspath.contains( idir ) )
           {
-            Attributes man = manifest.getMainAttributes();
-            String paths = man.getValue( Attributes.Name.CLASS_PATH );
-            if( paths != null && !paths.isEmpty() )
-            {
-              // We found a Jar with a Class-Path listing.
-              // Note sometimes happens when running from IntelliJ where the
-              // classpath would otherwise make the command line to java.exe
-              // too long.
-              for( String j : paths.split( " " ) )
-              {
-                // Add each of the paths to our classpath
-                URL url;
-                try
-                {
-                  url = new URL( j );
-                }
-                catch( MalformedURLException e )
-                {
-                  //Class-Path contained an invalid URL, skip it
-                  continue;
-                }
-                File dirOrJar = new File( url.toURI() );
-                IDirectory idir = getFileSystem().getIDirectory( dirOrJar );
-                if( !newClasspath.contains( idir ) )
-                {
-                  newClasspath.add( idir );
-                }
-              }
-            }
+            newClasspath.add( idir );
           }
         }
-        catch( Exception e )
-        {
-          throw new RuntimeException( e );
-        }
       }
     }
 
@@ -597,12 +962,20 @@ public class ManProject
     List<IDirectory> dirs = new ArrayList<>();
     for( String path : paths )
     {
-      dirs.add( manProjectFrom( ijModule ).getFileSystem().getIDirectory( new File( path ) ) );
+      dirs.add( manProjectFrom( ijModule ).getClasspathDirectory( new File( path ) ) );
     }
     return dirs;
   }
 
-  private static List<String> getDirectClassPaths( Module ijModule )
+  /**
+   * Most modules share most of their classpath, modules share the directory instances too
+   */
+  private IDirectory getClasspathDirectory( File file )
+  {
+    return _classpathDirs.computeIfAbsent( file.getAbsolutePath(), path -> getFileSystem().getIDirectory( file ) );
+  }
+
+  public static List<String> getDirectClassPaths( Module ijModule )
   {
     final ModuleRootManager rootManager = ModuleRootManager.getInstance( ijModule );
     final List<OrderEntry> orderEntries = Arrays.asList( rootManager.getOrderEntries() );
@@ -31,8 +31,11 @@ public class ManProjectComponent implements ProjectComponent
 //        () -> ApplicationManager.getApplication().runWriteAction(
 //          () -> ManProject.manProjectFrom( _project ).projectOpened() ) ) );
 
-    StartupManagerImpl.getInstance( _project ).registerStartupActivity( () ->
-      ApplicationManager.getApplication().runReadAction( () -> ManProject.manProjectFrom( _project ).projectOpened() ) );
+    StartupManagerImpl.getInstance( _project ).registerStartupActivity( () -> {
+      ManProject manProject = ManProject.manProjectFrom( _project );
+      ApplicationManager.getApplication().runReadAction( manProject::projectOpened );
+      manProject.initializeInBackground();
+    } );
   }
 
   @Override
@@ -1,31 +1,180 @@
 package manifold.ij.core;
 
 import com.intellij.compiler.server.BuildManagerListener;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import manifold.api.fs.IDirectory;
 import manifold.api.fs.IFile;
+import manifold.api.host.AbstractTypeSystemListener;
+import manifold.api.host.RefreshKind;
+import manifold.api.host.RefreshRequest;
 import manifold.api.type.ContributorKind;
 import manifold.api.type.ITypeManifold;
 
 /**
+ * Deletes class files compiled from manifold resources that changed since the last build, so the build compiles them
+ * again. Changed resources are collected from refresh events. A persisted index maps resource files to the class files
+ * compiled from them, it covers changes made while the IDE was not running and classes of types a change renamed or
+ * removed. Only the first build without an index walks all the types, a build started before the project's modules
+ * are loaded leaves the index to the next build. Classes the build compiles for changed resources
+ * are added to the index when the build finishes.
  */
-public class ManStaleClassCleaner implements BuildManagerListener
+public class ManStaleClassCleaner extends AbstractTypeSystemListener implements BuildManagerListener
 {
+  private static final Logger LOG = Logger.getInstance( ManStaleClassCleaner.class );
+  private static final int VERSION = 1;
+
+  private final ManProject _manProject;
+  private final Map<String, Change> _changes;
+  private Map<String, Set<String>> _index;
+  private final Map<String, Set<Change>> _compiling;
+  private volatile boolean _checkIndex;
+
+  ManStaleClassCleaner( ManProject manProject )
+  {
+    _manProject = manProject;
+    _changes = new ConcurrentHashMap<>();
+    _compiling = new HashMap<>();
+    _checkIndex = true;
+  }
 
   @Override
-  public void buildStarted( Project project, UUID sessionId, boolean isAutomake )
+  public void refreshedTypes( RefreshRequest request )
   {
-    ManProject manProject = ManProject.manProjectFrom( project );
-    List<ManModule> modules = manProject.getModules();
-    for( ManModule manModule: modules )
+    if( request.file == null || !(request.module instanceof ManModule) )
+    {
+      return;
+    }
+
+    // a file seen by several modules changes in each of them, only the one owning it has its classes
+    _changes.merge( request.file.toJavaFile().getPath() + '|' + request.module.getName(),
+                    new Change( (ManModule)request.module, request.file, request.types, request.kind ),
+                    Change::merge );
+  }
+
+  @Override
+  public void refreshed()
+  {
+    // anything may have changed, verify the whole index at the next build
+    _checkIndex = true;
+  }
+
+  @Override
+  public synchronized void buildStarted( Project project, UUID sessionId, boolean isAutomake )
+  {
+    if( _index == null )
+    {
+      Map<String, Set<String>> index = loadIndex();
+      if( index == null )
+      {
+        if( !_manProject.isReady() )
+        {
+          // the module graph is still loading, an index walked from it would be empty, build one with the next build
+          return;
+        }
+        _index = new HashMap<>();
+        _changes.clear();
+        cleanAll();
+        _checkIndex = false;
+        saveIndex();
+        return;
+      }
+      _index = index;
+    }
+
+    boolean changed = false;
+    if( _checkIndex )
+    {
+      _checkIndex = false;
+      changed = checkIndex();
+    }
+
+    Collection<Change> changes = new HashSet<>( _changes.values() );
+    _changes.values().removeAll( changes );
+    Map<String, Set<File>> reindexed = new HashMap<>();
+    for( Change change : changes )
+    {
+      String resource = change._file.toJavaFile().getPath();
+      if( !reindexed.containsKey( resource ) )
+      {
+        Set<String> indexed = _index.remove( resource );
+        if( indexed != null )
+        {
+          // includes classes of types the change renamed or removed
+          deleteClassFiles( indexed, change._kind == RefreshKind.DELETION ? Long.MAX_VALUE : change._file.toJavaFile().lastModified() );
+        }
+        reindexed.put( resource, new HashSet<>() );
+      }
+      reindexed.get( resource ).addAll( cleanChange( change ) );
+      if( change._kind != RefreshKind.DELETION )
+      {
+        _compiling.computeIfAbsent( resource, k -> new HashSet<>() ).add( change );
+      }
+      changed = true;
+    }
+    // the build compiles the same class files again
+    reindexed.forEach( this::indexClassFiles );
+
+    if( changed )
+    {
+      saveIndex();
+    }
+  }
+
+  /**
+   * Index the class files the build compiled for the changed resources, deleted classes and classes of new types did
+   * not exist when the build started
+   */
+  @Override
+  public synchronized void buildFinished( Project project, UUID sessionId, boolean isAutomake )
+  {
+    if( _compiling.isEmpty() || _index == null )
+    {
+      return;
+    }
+
+    for( Map.Entry<String, Set<Change>> entry : _compiling.entrySet() )
+    {
+      for( Change change : entry.getValue() )
+      {
+        Set<File> classFiles = new HashSet<>();
+        for( String fqn : change._types )
+        {
+          classFiles.addAll( findClassFiles( fqn, change._module.getOutputPath() ) );
+        }
+        indexClassFiles( entry.getKey(), classFiles );
+      }
+    }
+    _compiling.clear();
+    saveIndex();
+  }
+
+  /**
+   * Walk all the types of all the modules, for when there is no index
+   */
+  private void cleanAll()
+  {
+    for( ManModule manModule: _manProject.getModules() )
     {
       List<IDirectory> outputPath = manModule.getOutputPath();
       List<ITypeManifold> tms = manModule.getTypeManifolds().stream()
@@ -37,7 +186,15 @@ public class ManStaleClassCleaner implements BuildManagerListener
         for( String fqn: allTypeNames )
         {
           List<IFile> filesForType = tm.findFilesForType( fqn );
-          for( File classFile: findClassFiles( fqn, outputPath ) )
+          Set<File> classFiles = findClassFiles( fqn, outputPath );
+          for( IFile file: filesForType )
+          {
+            String resource = file.toJavaFile().getPath();
+            indexClassFiles( resource, classFiles );
+            _compiling.computeIfAbsent( resource, k -> new HashSet<>() )
+              .add( new Change( manModule, file, new String[] {fqn}, RefreshKind.MODIFICATION ) );
+          }
+          for( File classFile: classFiles )
           {
             long classTimestamp = classFile.lastModified();
             for( IFile file: filesForType )
@@ -55,6 +212,151 @@ public class ManStaleClassCleaner implements BuildManagerListener
     }
   }
 
+  /**
+   * @return True if the index changed
+   */
+  private boolean checkIndex()
+  {
+    boolean changed = false;
+    for( Map.Entry<String, Set<String>> entry : new HashMap<>( _index ).entrySet() )
+    {
+      File resource = new File( entry.getKey() );
+      if( !resource.exists() )
+      {
+        deleteClassFiles( entry.getValue(), Long.MAX_VALUE );
+        _index.remove( entry.getKey() );
+        changed = true;
+      }
+      else if( deleteClassFiles( entry.getValue(), resource.lastModified() ) )
+      {
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * @return The class files of the types currently produced from the changed resource
+   */
+  private Set<File> cleanChange( Change change )
+  {
+    if( change._kind == RefreshKind.DELETION )
+    {
+      return Collections.emptySet();
+    }
+
+    Set<File> classFiles = new HashSet<>();
+    for( String fqn : change._types )
+    {
+      classFiles.addAll( findClassFiles( fqn, change._module.getOutputPath() ) );
+    }
+    long timestamp = change._file.toJavaFile().lastModified();
+    for( File classFile : classFiles )
+    {
+      if( timestamp > classFile.lastModified() )
+      {
+        //noinspection ResultOfMethodCallIgnored
+        classFile.delete();
+      }
+    }
+    return classFiles;
+  }
+
+  /**
+   * @return True if any class file was deleted
+   */
+  private boolean deleteClassFiles( Set<String> classFiles, long resourceTimestamp )
+  {
+    boolean deleted = false;
+    for( String path : classFiles )
+    {
+      File classFile = new File( path );
+      if( classFile.exists() && resourceTimestamp > classFile.lastModified() )
+      {
+        deleted |= classFile.delete();
+      }
+    }
+    return deleted;
+  }
+
+  private void indexClassFiles( String resource, Set<File> classFiles )
+  {
+    if( !classFiles.isEmpty() )
+    {
+      Set<String> paths = _index.computeIfAbsent( resource, k -> new HashSet<>() );
+      for( File classFile : classFiles )
+      {
+        paths.add( classFile.getPath() );
+      }
+    }
+  }
+
+  private File getIndexFile()
+  {
+    return new File( PathManager.getSystemPath(), "manifold/classes/" + _manProject.getNativeProject().getLocationHash() + ".dat" );
+  }
+
+  private Map<String, Set<String>> loadIndex()
+  {
+    File file = getIndexFile();
+    if( !file.isFile() )
+    {
+      return null;
+    }
+
+    try( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) )
+    {
+      if( in.readInt() != VERSION )
+      {
+        return null;
+      }
+      Map<String, Set<String>> index = new HashMap<>();
+      int count = in.readInt();
+      for( int i = 0; i < count; i++ )
+      {
+        String resource = in.readUTF();
+        int classCount = in.readInt();
+        Set<String> classFiles = new HashSet<>( classCount );
+        for( int j = 0; j < classCount; j++ )
+        {
+          classFiles.add( in.readUTF() );
+        }
+        index.put( resource, classFiles );
+      }
+      return index;
+    }
+    catch( IOException e )
+    {
+      LOG.warn( "Manifold: failed to read class file index " + file, e );
+      return null;
+    }
+  }
+
+  private void saveIndex()
+  {
+    File file = getIndexFile();
+    //noinspection ResultOfMethodCallIgnored
+    file.getParentFile().mkdirs();
+    try( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) ) )
+    {
+      out.writeInt( VERSION );
+      out.writeInt( _index.size() );
+      for( Map.Entry<String, Set<String>> entry : _index.entrySet() )
+      {
+        out.writeUTF( entry.getKey() );
+        out.writeInt( entry.getValue().size() );
+        for( String classFile : entry.getValue() )
+        {
+          out.writeUTF( classFile );
+        }
+      }
+    }
+    catch( IOException e )
+    {
+      LOG.warn( "Manifold: failed to write class file index " + file, e );
+    }
+  }
+
   private Set<File> findClassFiles( String fqn, List<IDirectory> outputPath )
   {
     Set<File> classFiles = new HashSet<>( 2 );
@@ -71,7 +373,7 @@ public class ManStaleClassCleaner implements BuildManagerListener
     {
       return;
     }
-    
+
     File baseOutputDir = outputPath.toJavaFile();
     if( !baseOutputDir.exists() )
     {
@@ -95,6 +397,35 @@ public class ManStaleClassCleaner implements BuildManagerListener
 
     File[] relevantClasses = pkgDir.listFiles( ( dir, name ) -> name.equals( className + ".class" ) ||
                                                                 (name.endsWith( ".class" ) && name.startsWith( className + '$' )) );
-    classFiles.addAll( Arrays.asList( relevantClasses ) );
+    if( relevantClasses != null )
+    {
+      classFiles.addAll( Arrays.asList( relevantClasses ) );
+    }
+  }
+
+  private static class Change
+  {
+    private final ManModule _module;
+    private final IFile _file;
+    private final String[] _types;
+    private final RefreshKind _kind;
+
+    Change( ManModule module, IFile file, String[] types, RefreshKind kind )
+    {
+      _module = module;
+      _file = file;
+      _types = types == null ? new String[0] : types;
+      _kind = kind;
+    }
+
+    /**
+     * The latest kind wins, types of both are kept so classes of renamed types are found
+     */
+    Change merge( Change later )
+    {
+      Set<String> types = new HashSet<>( Arrays.asList( _types ) );
+      types.addAll( Arrays.asList( later._types ) );
+      return new Change( later._module, later._file, types.toArray( new String[types.size()] ), later._kind );
+    }
   }
 }
@@ -0,0 +1,92 @@
+/*
+ * Manifold
+ */
+
+package manifold.ij.core;
+
+import com.intellij.openapi.module.Module;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import manifold.api.host.Dependency;
+
+/**
+ * An immutable snapshot of a project's modules. The project publishes a new graph when its modules change, readers
+ * holding the previous graph keep a consistent view and never wait on a rebuild.
+ */
+public class ModuleGraph
+{
+  static final ModuleGraph EMPTY = new ModuleGraph( Collections.emptyList() );
+
+  private final List<ManModule> _modules;
+  private final Map<Module, ManModule> _byIjModule;
+  private final Map<ManModule, List<ManModule>> _dependents;
+  private final List<ManModule> _roots;
+  private volatile ModuleRootIndex _rootIndex;
+
+  ModuleGraph( List<ManModule> modules )
+  {
+    _modules = Collections.unmodifiableList( new ArrayList<>( modules ) );
+    _byIjModule = new IdentityHashMap<>( modules.size() );
+    _dependents = new IdentityHashMap<>( modules.size() );
+    Set<ManModule> nonRoots = new HashSet<>();
+    for( ManModule module : modules )
+    {
+      _byIjModule.put( module.getIjModule(), module );
+      for( Dependency d : module.getDependencies() )
+      {
+        ManModule dep = (ManModule)d.getModule();
+        _dependents.computeIfAbsent( dep, k -> new ArrayList<>() ).add( module );
+        nonRoots.add( dep );
+      }
+    }
+
+    List<ManModule> roots = new ArrayList<>( modules );
+    roots.removeAll( nonRoots );
+    _roots = Collections.unmodifiableList( roots );
+  }
+
+  public List<ManModule> getModules()
+  {
+    return _modules;
+  }
+
+  /**
+   * @return The ManModule defined for {@code ijModule}, or null if the module is not part of this graph
+   */
+  public ManModule getModule( Module ijModule )
+  {
+    return _byIjModule.get( ijModule );
+  }
+
+  /**
+   * @return The modules directly depending on {@code module}
+   */
+  public List<ManModule> getDependents( ManModule module )
+  {
+    List<ManModule> dependents = _dependents.get( module );
+    return dependents == null ? Collections.emptyList() : Collections.unmodifiableList( dependents );
+  }
+
+  /**
+   * @return The modules no other module depends on
+   */
+  public List<ManModule> getRoots()
+  {
+    return _roots;
+  }
+
+  public ModuleRootIndex getRootIndex()
+  {
+    ModuleRootIndex rootIndex = _rootIndex;
+    if( rootIndex == null )
+    {
+      _rootIndex = rootIndex = new ModuleRootIndex( _modules );
+    }
+    return rootIndex;
+  }
+}
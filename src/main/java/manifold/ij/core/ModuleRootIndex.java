@@ -0,0 +1,196 @@
+/*
+ * Manifold
+ */
+
+package manifold.ij.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import manifold.api.fs.IDirectory;
+import manifold.api.fs.IResource;
+import manifold.api.host.Dependency;
+
+/**
+ * Indexes the source, resource and output roots of a project's modules by path. Finding the modules a file belongs to
+ * walks a trie of path segments, the cost is independent of the number of modules and roots.
+ */
+public class ModuleRootIndex
+{
+  private final Node _root;
+  private final Set<ManModule> _modules;
+  private final Map<ManModule, Set<ManModule>> _visibleFrom;
+
+  ModuleRootIndex( List<ManModule> modules )
+  {
+    _root = new Node();
+    _modules = new LinkedHashSet<>( modules );
+    for( ManModule module : modules )
+    {
+      for( IDirectory dir : module.getSourcePath() )
+      {
+        add( dir, module, true );
+      }
+      for( IDirectory dir : module.getOutputPath() )
+      {
+        if( dir != null )
+        {
+          add( dir, module, false );
+        }
+      }
+    }
+    _visibleFrom = makeVisibility( modules );
+  }
+
+  public boolean isIndexed( ManModule module )
+  {
+    return _modules.contains( module );
+  }
+
+  /**
+   * @return The modules having a root containing {@code file} and the modules seeing them as a dependency, either
+   * directly or through exports. All modules if no root contains {@code file}, it may still matter to a type manifold
+   * e.g., a file in a library or a content root.
+   */
+  public Set<ManModule> findModulesSeeing( IResource file )
+  {
+    List<Root> roots = findRoots( file );
+    if( roots.isEmpty() )
+    {
+      return Collections.unmodifiableSet( _modules );
+    }
+
+    Set<ManModule> modules = new LinkedHashSet<>();
+    for( Root root : roots )
+    {
+      modules.addAll( _visibleFrom.get( root._module ) );
+    }
+    return modules;
+  }
+
+  /**
+   * @return The source roots of {@code module} containing {@code file}
+   */
+  public List<IDirectory> findSourceRoots( ManModule module, IResource file )
+  {
+    List<IDirectory> sourceRoots = Collections.emptyList();
+    for( Root root : findRoots( file ) )
+    {
+      if( root._source && root._module == module )
+      {
+        if( sourceRoots.isEmpty() )
+        {
+          sourceRoots = new ArrayList<>( 2 );
+        }
+        sourceRoots.add( root._dir );
+      }
+    }
+    return sourceRoots;
+  }
+
+  private List<Root> findRoots( IResource file )
+  {
+    List<Root> roots = new ArrayList<>( 2 );
+    Node node = _root;
+    for( String segment : segments( file.getPath().getPathString() ) )
+    {
+      node = node._children.get( segment );
+      if( node == null )
+      {
+        break;
+      }
+      roots.addAll( node._roots );
+    }
+    return roots;
+  }
+
+  private void add( IDirectory dir, ManModule module, boolean source )
+  {
+    Node node = _root;
+    for( String segment : segments( dir.getPath().getPathString() ) )
+    {
+      node = node._children.computeIfAbsent( segment, k -> new Node() );
+    }
+    node._roots.add( new Root( dir, module, source ) );
+  }
+
+  private static String[] segments( String path )
+  {
+    // files in jars are separated from the jar's path with '!/'
+    return path.replace( "!/", "/" ).split( "/" );
+  }
+
+  /**
+   * A module sees the roots of its direct dependencies and of whatever they export, which is what type manifold
+   * lookups in ManModule traverse. Inverting that, the modules seeing a module's roots are the module, all the modules
+   * exporting it transitively, and all modules directly depending on any of those.
+   */
+  private static Map<ManModule, Set<ManModule>> makeVisibility( List<ManModule> modules )
+  {
+    Map<ManModule, Set<ManModule>> dependents = new HashMap<>();
+    Map<ManModule, Set<ManModule>> exporters = new HashMap<>();
+    for( ManModule module : modules )
+    {
+      for( Dependency d : module.getDependencies() )
+      {
+        ManModule dep = (ManModule)d.getModule();
+        dependents.computeIfAbsent( dep, k -> new HashSet<>() ).add( module );
+        if( d.isExported() )
+        {
+          exporters.computeIfAbsent( dep, k -> new HashSet<>() ).add( module );
+        }
+      }
+    }
+
+    Map<ManModule, Set<ManModule>> visibleFrom = new HashMap<>();
+    for( ManModule module : modules )
+    {
+      Set<ManModule> exported = new LinkedHashSet<>();
+      Deque<ManModule> queue = new ArrayDeque<>();
+      queue.add( module );
+      while( !queue.isEmpty() )
+      {
+        ManModule m = queue.pop();
+        if( exported.add( m ) )
+        {
+          queue.addAll( exporters.getOrDefault( m, Collections.emptySet() ) );
+        }
+      }
+
+      Set<ManModule> visible = new LinkedHashSet<>( exported );
+      for( ManModule m : exported )
+      {
+        visible.addAll( dependents.getOrDefault( m, Collections.emptySet() ) );
+      }
+      visibleFrom.put( module, visible );
+    }
+    return visibleFrom;
+  }
+
+  private static class Node
+  {
+    private final Map<String, Node> _children = new HashMap<>( 4 );
+    private final List<Root> _roots = new ArrayList<>( 1 );
+  }
+
+  private static class Root
+  {
+    private final IDirectory _dir;
+    private final ManModule _module;
+    private final boolean _source;
+
+    Root( IDirectory dir, ManModule module, boolean source )
+    {
+      _dir = dir;
+      _module = module;
+      _source = source;
+    }
+  }
+}
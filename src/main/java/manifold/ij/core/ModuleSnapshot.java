@@ -0,0 +1,228 @@
+/*
+ * Manifold
+ */
+
+package manifold.ij.core;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import manifold.api.fs.IDirectory;
+import manifold.ij.fs.IjFileSystem;
+import manifold.ij.fs.IjJarDirectory;
+import manifold.ij.util.FP64;
+
+/**
+ * The derived part of the module model, persisted between sessions: classpaths expanded from jar manifests, source
+ * roots detected in classpath entries and reduced classpaths. Entries are keyed by the module's configuration
+ * fingerprint combined with the size and time stamp of its classpath entries, a module whose key differs is defined
+ * from scratch.
+ */
+class ModuleSnapshot
+{
+  private static final Logger LOG = Logger.getInstance( ModuleSnapshot.class );
+  private static final int VERSION = 1;
+  private static final String JAR_PREFIX = "jar:";
+
+  private final Map<String, Entry> _entries;
+
+  private ModuleSnapshot( Map<String, Entry> entries )
+  {
+    _entries = entries;
+  }
+
+  static ModuleSnapshot load( Project project )
+  {
+    File file = getFile( project );
+    if( !file.isFile() )
+    {
+      return new ModuleSnapshot( Collections.emptyMap() );
+    }
+
+    Map<String, Entry> entries = new HashMap<>();
+    try( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) )
+    {
+      if( in.readInt() != VERSION )
+      {
+        return new ModuleSnapshot( Collections.emptyMap() );
+      }
+      int count = in.readInt();
+      for( int i = 0; i < count; i++ )
+      {
+        String name = in.readUTF();
+        String key = in.readUTF();
+        entries.put( name, new Entry( key, readPaths( in ), readPaths( in ), readPaths( in ) ) );
+      }
+    }
+    catch( IOException e )
+    {
+      LOG.warn( "Manifold: failed to read module snapshot " + file, e );
+      return new ModuleSnapshot( Collections.emptyMap() );
+    }
+    return new ModuleSnapshot( entries );
+  }
+
+  static synchronized void save( Project project, List<ManModule> modules )
+  {
+    File file = getFile( project );
+    //noinspection ResultOfMethodCallIgnored
+    file.getParentFile().mkdirs();
+    // written aside and moved in place, a reader or a failed write never sees a truncated snapshot
+    File temp = new File( file.getPath() + ".tmp" );
+    try( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temp ) ) ) )
+    {
+      out.writeInt( VERSION );
+      List<ManModule> keyed = new ArrayList<>();
+      for( ManModule module : modules )
+      {
+        if( module.getSnapshotKey() != null )
+        {
+          keyed.add( module );
+        }
+      }
+      out.writeInt( keyed.size() );
+      for( ManModule module : keyed )
+      {
+        out.writeUTF( module.getName() );
+        out.writeUTF( module.getSnapshotKey() );
+        writePaths( out, module.getExpandedClassPath() );
+        writePaths( out, module.getSourcePath() );
+        writePaths( out, module.getJavaClassPath() );
+      }
+    }
+    catch( IOException e )
+    {
+      LOG.warn( "Manifold: failed to write module snapshot " + file, e );
+      //noinspection ResultOfMethodCallIgnored
+      temp.delete();
+      return;
+    }
+
+    try
+    {
+      Files.move( temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+    catch( IOException e )
+    {
+      LOG.warn( "Manifold: failed to replace module snapshot " + file, e );
+      //noinspection ResultOfMethodCallIgnored
+      temp.delete();
+    }
+  }
+
+  /**
+   * @return The entry for {@code moduleName} if it was saved with {@code key}, otherwise null
+   */
+  Entry get( String moduleName, String key )
+  {
+    Entry entry = _entries.get( moduleName );
+    return entry != null && entry._key.equals( key ) ? entry : null;
+  }
+
+  /**
+   * Manifest Class-Path expansion and source detection depend on the contents of the classpath entries, which the
+   * configuration fingerprint doesn't cover
+   */
+  static String makeKey( FP64 fingerprint, List<IDirectory> classpath )
+  {
+    FP64 fp = new FP64( fingerprint );
+    for( IDirectory dir : classpath )
+    {
+      File file = dir.toJavaFile();
+      fp.extend( file.getPath() + ':' + file.length() + ':' + file.lastModified() );
+    }
+    return fp.toHexString();
+  }
+
+  private static File getFile( Project project )
+  {
+    return new File( PathManager.getSystemPath(), "manifold/modules/" + project.getLocationHash() + ".dat" );
+  }
+
+  private static void writePaths( DataOutputStream out, List<IDirectory> dirs ) throws IOException
+  {
+    out.writeInt( dirs.size() );
+    for( IDirectory dir : dirs )
+    {
+      String path = dir.toJavaFile().getPath();
+      out.writeUTF( dir instanceof IjJarDirectory ? JAR_PREFIX + path : path );
+    }
+  }
+
+  private static List<String> readPaths( DataInputStream in ) throws IOException
+  {
+    int count = in.readInt();
+    List<String> paths = new ArrayList<>( count );
+    for( int i = 0; i < count; i++ )
+    {
+      paths.add( in.readUTF() );
+    }
+    return paths;
+  }
+
+  static class Entry
+  {
+    private final String _key;
+    private final List<String> _classpath;
+    private final List<String> _sourcePath;
+    private final List<String> _reducedClasspath;
+
+    private Entry( String key, List<String> classpath, List<String> sourcePath, List<String> reducedClasspath )
+    {
+      _key = key;
+      _classpath = classpath;
+      _sourcePath = sourcePath;
+      _reducedClasspath = reducedClasspath;
+    }
+
+    List<IDirectory> getClasspath( IjFileSystem fs )
+    {
+      return toDirectories( fs, _classpath );
+    }
+
+    List<IDirectory> getSourcePath( IjFileSystem fs )
+    {
+      return toDirectories( fs, _sourcePath );
+    }
+
+    List<IDirectory> getReducedClasspath( IjFileSystem fs )
+    {
+      return toDirectories( fs, _reducedClasspath );
+    }
+
+    private static List<IDirectory> toDirectories( IjFileSystem fs, List<String> paths )
+    {
+      List<IDirectory> dirs = new ArrayList<>( paths.size() );
+      for( String path : paths )
+      {
+        if( path.startsWith( JAR_PREFIX ) )
+        {
+          dirs.add( fs.getIDirectory( new File( path.substring( JAR_PREFIX.length() ) ) ) );
+        }
+        else
+        {
+          VirtualFile file = LocalFileSystem.getInstance().findFileByIoFile( new File( path ) );
+          dirs.add( file != null ? fs.getIDirectory( file ) : fs.getIDirectory( new File( path ) ) );
+        }
+      }
+      return dirs;
+    }
+  }
+}
@@ -57,6 +57,12 @@ public class ExtensionClassAnnotator implements Annotator
       return;
     }
 
+    if( !ManProject.isReady( element.getProject() ) )
+    {
+      // skip processing while modules are defined in the background
+      return;
+    }
+
     PsiClass psiExtensionClass = findExtensionClass( element );
 
     if( psiExtensionClass != null )
@@ -231,7 +237,8 @@ public class ExtensionClassAnnotator implements Annotator
     Module module = ManProject.getIjModule( psiExtentionInterface );
     if( module != null )
     {
-      if( isInterfaceMadeStructuralByExtension( psiExtentionInterface, ManProject.getModule( module ) ) )
+      ManModule manModule = ManProject.getModule( module );
+      if( manModule != null && isInterfaceMadeStructuralByExtension( psiExtentionInterface, manModule ) )
       {
         return true;
       }
@@ -253,8 +260,7 @@ public class ExtensionClassAnnotator implements Annotator
   private boolean isInterfaceMadeStructuralByExtension( PsiClass psiInterface, ManModule module )
   {
     final String fqn = psiInterface.getQualifiedName();
-    ManModule manModule = ManProject.getModule( module.getIjModule() );
-    for( ITypeManifold sp : manModule.getTypeManifolds() )
+    for( ITypeManifold sp : module.getTypeManifolds() )
     {
       if( sp.getContributorKind() == Supplemental )
       {
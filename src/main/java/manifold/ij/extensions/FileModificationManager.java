@@ -6,9 +6,13 @@ package manifold.ij.extensions;
 
 import com.intellij.injected.editor.VirtualFileWindow;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
 import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.newvfs.BulkFileListener;
 import com.intellij.openapi.vfs.newvfs.events.VFileCopyEvent;
@@ -18,49 +22,59 @@ import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
 import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
 import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
 import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
 import com.intellij.psi.impl.PsiDocumentTransactionListener;
+import com.intellij.psi.impl.PsiModificationTrackerImpl;
 import com.intellij.testFramework.LightVirtualFile;
+import com.intellij.util.concurrency.SequentialTaskExecutor;
 import java.io.File;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import manifold.api.fs.IFile;
 import manifold.api.fs.IResource;
+import manifold.api.host.ITypeLoaderListener;
+import manifold.api.host.RefreshKind;
+import manifold.ij.core.ManModule;
 import manifold.ij.core.ManProject;
 import manifold.ij.fs.IjFile;
-import manifold.ij.util.DelayedRunner;
 import manifold.ij.util.FileUtil;
+import manifold.ij.util.KeyedDebouncer;
 
 public class FileModificationManager implements PsiDocumentTransactionListener, BulkFileListener
 {
-  @SuppressWarnings("FieldCanBeLocal")
-  private static int TYPE_REFRESH_DELAY_MS = 0;
-
-  private final DelayedRunner _typeRefresher = new DelayedRunner();
+  // Events are collected over a short window so that a burst of saves or keystrokes results in a single refresh.
+  // The window grows with the size of the last batch, bursty sources tend to stay bursty.
+  private static final int MIN_BATCH_WINDOW_MS = 50;
+  private static final int MAX_BATCH_WINDOW_MS = 500;
+  private static final int BATCH_WINDOW_MS_PER_FILE = 2;
+  private static final String BATCH_TASK_ID = "manifold.refresh.batch";
+
+  // Mass changes such as a branch switch put the manager in bulk mode. Per-file processing is suspended until the
+  // events stop coming, then a single consolidated invalidation runs for the whole batch.
+  private static final int BULK_THRESHOLD = 500;
+  private static final int BULK_QUIET_MS = 1000;
+  private static final int BULK_MAX_LATENCY_MS = 10000;
+  private static final int BULK_MAX_TARGETED_REFRESHES = 50000;
+
+  private static final Logger LOG = Logger.getInstance( FileModificationManager.class );
+
+  private final KeyedDebouncer _refreshDebouncer = new KeyedDebouncer( BULK_MAX_LATENCY_MS );
+  private final ExecutorService _refreshExecutor = SequentialTaskExecutor.createSequentialApplicationPoolExecutor( "Manifold Refresh" );
   private final Project _project;
   private final ManProject _manProject;
   private ManRefreshListener _manRefresher;
-
-  private class Refresher implements Runnable
-  {
-    private final Project _project;
-    private final VirtualFile _file;
-
-    Refresher( Project project, VirtualFile file )
-    {
-      _project = project;
-      _file = file;
-    }
-
-    public void run()
-    {
-      ApplicationManager.getApplication().runReadAction( () -> fireModifiedEvent( _file ) );
-    }
-  }
+  private RefreshBatch _pending;
+  private int _lastBatchSize;
+  private boolean _bulk;
 
   public FileModificationManager( ManProject project )
   {
     _project = project.getNativeProject();
     _manProject = ManProject.manProjectFrom( _project );
     _manRefresher = new ManRefreshListener( _project );
+    _pending = new RefreshBatch();
+    Disposer.register( _project, _refreshDebouncer );
   }
 
   public ManRefreshListener getManRefresher()
@@ -68,11 +82,6 @@ public class FileModificationManager implements PsiDocumentTransactionListener,
     return _manRefresher;
   }
 
-  private String getRefreshTaskId( VirtualFile virtualFile )
-  {
-    return virtualFile.getPath();
-  }
-
   // PsiDocumentTransactionListener
   public void transactionStarted( final Document doc, final PsiFile file )
   {
@@ -89,15 +98,7 @@ public class FileModificationManager implements PsiDocumentTransactionListener,
       file = ((VirtualFileWindow)file).getDelegate();
     }
 
-    final Runnable refresher = new Refresher( _project, file );
-    if( TYPE_REFRESH_DELAY_MS == 0 )
-    {
-      refresher.run();
-    }
-    else
-    {
-      _typeRefresher.scheduleTask( getRefreshTaskId( file ), TYPE_REFRESH_DELAY_MS, refresher );
-    }
+    fireModifiedEvent( file );
 
 //    // process inner class changes
 //    if( psiFile instanceof PsiClassOwner )
@@ -153,14 +154,14 @@ public class FileModificationManager implements PsiDocumentTransactionListener,
       return;
     }
 
-    DumbService dumb = DumbService.getInstance( _project );
-    if( dumb.isDumb() )
+    if( ApplicationManager.getApplication().isUnitTestMode() )
     {
-      dumb.smartInvokeLater( () -> _after( events ) );
+      ApplicationManager.getApplication().invokeLater( () ->_after( events ) );
     }
     else
     {
-      ApplicationManager.getApplication().invokeLater( () ->_after( events ) );
+      // events only queue refreshes, the refresh work happens in the background
+      _after( events );
     }
   }
 
@@ -194,7 +195,7 @@ public class FileModificationManager implements PsiDocumentTransactionListener,
         }
         else // modified
         {
-          ApplicationManager.getApplication().runReadAction( () -> fireModifiedEvent( file ) );
+          fireModifiedEvent( file );
         }
       }
     }
@@ -214,8 +215,14 @@ public class FileModificationManager implements PsiDocumentTransactionListener,
       return;
     }
 
-    // Handle the Deletion *before* it is renamed
-    fireDeletedEvent( originalFile );
+    // Handle the Deletion *before* it is renamed, the file's path must not change underneath the refresh
+    IResource file = FileUtil.toIResource( _project, originalFile );
+    if( file instanceof IjFile && discardPending( (IjFile)file ) == RefreshKind.CREATION )
+    {
+      // listeners never heard of the file
+      return;
+    }
+    _manRefresher.deleted( file );
   }
 
   private void processRenameAfter( VFileEvent event )
@@ -254,16 +261,157 @@ public class FileModificationManager implements PsiDocumentTransactionListener,
 
   private void fireModifiedEvent( IResource file )
   {
-    _manRefresher.modified( file );
+    enqueue( file, RefreshKind.MODIFICATION );
   }
 
   private void fireDeletedEvent( IResource file )
   {
-    _manRefresher.deleted( file );
+    enqueue( file, RefreshKind.DELETION );
   }
 
   private void fireCreatedEvent( IResource file )
   {
-    _manRefresher.created( file );
+    enqueue( file, RefreshKind.CREATION );
+  }
+
+  private void enqueue( IResource file, RefreshKind kind )
+  {
+    if( !(file instanceof IjFile) )
+    {
+      // only files produce types
+      return;
+    }
+
+    boolean schedule;
+    boolean bulk;
+    synchronized( this )
+    {
+      schedule = _pending.isEmpty();
+      _pending.add( (IjFile)file, kind );
+      if( !_bulk && _pending.size() >= BULK_THRESHOLD )
+      {
+        _bulk = true;
+        LOG.info( "Manifold: entering bulk refresh mode, " + _pending.size() + " pending files" );
+      }
+      bulk = _bulk;
+    }
+
+    if( ApplicationManager.getApplication().isUnitTestMode() )
+    {
+      // tests expect types to reflect changes immediately
+      flush();
+    }
+    else if( bulk )
+    {
+      // rescheduling postpones the flush until the burst is over
+      scheduleFlush( BULK_QUIET_MS );
+    }
+    else if( schedule )
+    {
+      scheduleFlush( getBatchWindow() );
+    }
+  }
+
+  private void scheduleFlush( int delay )
+  {
+    _refreshDebouncer.schedule( BATCH_TASK_ID, delay,
+      () -> DumbService.getInstance( _project ).runWhenSmart( () -> _refreshExecutor.execute( this::flush ) ) );
+  }
+
+  private int getBatchWindow()
+  {
+    return Math.min( MAX_BATCH_WINDOW_MS, MIN_BATCH_WINDOW_MS + _lastBatchSize * BATCH_WINDOW_MS_PER_FILE );
+  }
+
+  private void flush()
+  {
+    if( _project.isDisposed() )
+    {
+      return;
+    }
+
+    RefreshBatch batch;
+    boolean bulk;
+    synchronized( this )
+    {
+      batch = _pending;
+      _pending = new RefreshBatch();
+      bulk = _bulk;
+      _bulk = false;
+    }
+    _lastBatchSize = bulk ? 0 : batch.size();
+    if( LOG.isDebugEnabled() )
+    {
+      LOG.debug( "Manifold: flushing " + batch.size() + " files" + (bulk ? " in bulk" : "") + ", refresh flushes scheduled: " +
+                 _refreshDebouncer.getScheduledCount() + ", coalesced: " + _refreshDebouncer.getCoalescedCount() +
+                 ", executed: " + _refreshDebouncer.getExecutedCount() );
+    }
+
+    if( ApplicationManager.getApplication().isDispatchThread() )
+    {
+      ApplicationManager.getApplication().runReadAction( () -> _manRefresher.refresh( batch ) );
+      return;
+    }
+
+    // Off the EDT each module is refreshed in a read action that yields to write actions, a cancelled module is
+    // simply refreshed again since listeners are indifferent to repeated requests
+    Map<ManModule, RefreshBatch> routes = ApplicationManager.getApplication().runReadAction(
+      (Computable<Map<ManModule, RefreshBatch>>)() -> _manRefresher.route( batch ) );
+    if( bulk )
+    {
+      bulkRefresh( batch, routes );
+    }
+    else
+    {
+      refresh( routes );
+    }
+  }
+
+  private void refresh( Map<ManModule, RefreshBatch> routes )
+  {
+    List<ITypeLoaderListener> listeners = _manRefresher.getListeners();
+    for( Map.Entry<ManModule, RefreshBatch> route : routes.entrySet() )
+    {
+      while( !ProgressIndicatorUtils.runInReadActionWithWriteActionPriority(
+        () -> _manRefresher.refresh( route.getValue(), route.getKey(), listeners ) ) )
+      {
+        if( _project.isDisposed() )
+        {
+          return;
+        }
+        ProgressIndicatorUtils.yieldToPendingWriteActions();
+      }
+    }
+  }
+
+  /**
+   * Consolidated invalidation for a bulk batch. Either the batch is refreshed only in the modules that can see its
+   * files, or if that is more work than starting over, all caches are nuked.
+   */
+  private void bulkRefresh( RefreshBatch batch, Map<ManModule, RefreshBatch> routes )
+  {
+    long start = System.currentTimeMillis();
+    int moduleCount = ApplicationManager.getApplication().runReadAction( (Computable<Integer>)() -> _manProject.getModules().size() );
+    long targetedRefreshes = routes.values().stream().mapToLong( RefreshBatch::size ).sum();
+    if( routes.size() * 2 > moduleCount || targetedRefreshes > BULK_MAX_TARGETED_REFRESHES )
+    {
+      ApplicationManager.getApplication().runReadAction( () -> _manRefresher.nukeFromOrbit() );
+      ApplicationManager.getApplication().invokeLater(
+        () -> ((PsiModificationTrackerImpl)PsiManager.getInstance( _project ).getModificationTracker()).incCounter(),
+        _project.getDisposed() );
+      LOG.info( "Manifold: bulk refresh of " + batch.size() + " files affecting " + routes.size() + " of " +
+                moduleCount + " modules, nuked all caches in " + (System.currentTimeMillis() - start) + "ms" );
+      return;
+    }
+
+    LOG.info( "Manifold: bulk refresh of " + batch.size() + " files affecting " + routes.size() + " of " +
+              moduleCount + " modules, refreshing affected modules" );
+    refresh( routes );
+    LOG.info( "Manifold: bulk refresh of affected modules finished in " + (System.currentTimeMillis() - start) + "ms" );
+  }
+
+  private synchronized RefreshKind discardPending( IjFile file )
+  {
+    return _pending.remove( file );
   }
 }
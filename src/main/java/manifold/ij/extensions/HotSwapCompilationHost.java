@@ -0,0 +1,218 @@
+/*
+ * Manifold
+ */
+
+package manifold.ij.extensions;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.OrderEnumerator;
+import com.intellij.openapi.vfs.VirtualFile;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaFileObject;
+import manifold.api.host.AbstractTypeSystemListener;
+import manifold.api.host.RefreshRequest;
+import manifold.ij.core.ManModule;
+import manifold.ij.util.FP64;
+import manifold.internal.host.ManifoldHost;
+import manifold.internal.javac.JavaParser;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Compiles manifold sources for hot swap against the project's classpath. Creating the classloader, bootstrapping
+ * the manifold host and finding the parser takes seconds on a large classpath, the host keeps them warm between
+ * swaps and rebuilds them only when the classpath fingerprint changes. The bootstrapped host caches the types it
+ * produced from resource files, it is also rebuilt after a file a type manifold handles changes. Java edits leave it
+ * warm, the sources being swapped are compiled from their current text.
+ */
+class HotSwapCompilationHost extends AbstractTypeSystemListener implements Disposable
+{
+  private static final Logger LOG = Logger.getInstance( HotSwapCompilationHost.class );
+
+  private final Project _project;
+  private FP64 _fingerprint;
+  private URLClassLoader _loader;
+  private Object _javaParser;
+  private Method _compileMethod;
+  private boolean _noManifold;
+  private volatile boolean _stale;
+
+  HotSwapCompilationHost( Project project )
+  {
+    _project = project;
+  }
+
+  /**
+   * @return The compiled classes as the parser's class file objects, empty if the project does not depend on manifold
+   */
+  synchronized Collection<?> compile( Set<JavaFileObject> sourceFiles )
+  {
+    try
+    {
+      prepare();
+      if( _noManifold )
+      {
+        return Collections.emptyList();
+      }
+      return (Collection<?>)_compileMethod.invoke( _javaParser, sourceFiles, Arrays.asList( "-g", "-nowarn", "-Xlint:none", "-proc:none", "-parameters" ), null );
+    }
+    catch( Exception e )
+    {
+      throw new RuntimeException( e );
+    }
+  }
+
+  private void prepare() throws Exception
+  {
+    List<File> classpath = makeCompilerClassPath();
+    FP64 fingerprint = new FP64();
+    for( File file : classpath )
+    {
+      fingerprint.extend( file.getPath() );
+      if( file.isFile() )
+      {
+        // a jar replaced in place keeps its path
+        fingerprint.extend( file.length() );
+        fingerprint.extend( file.lastModified() );
+      }
+    }
+    if( !_stale && fingerprint.equals( _fingerprint ) )
+    {
+      return;
+    }
+
+    close();
+    _stale = false;
+    _loader = new URLClassLoader( toUrls( classpath ) );
+    _fingerprint = fingerprint;
+
+    Class<?> manifoldHostClass;
+    try
+    {
+      manifoldHostClass = Class.forName( ManifoldHost.class.getName(), true, _loader );
+    }
+    catch( ClassNotFoundException cnfe )
+    {
+      // The project does not have manifold as a dependency
+      _noManifold = true;
+      return;
+    }
+
+    Method bootstrapMethod = manifoldHostClass.getMethod( "bootstrap", List.class, List.class );
+    bootstrapMethod.invoke( null, Collections.emptyList(), classpath );
+
+    Class<?> javaParserClass = Class.forName( JavaParser.class.getName(), true, _loader );
+    Method instanceMethod = javaParserClass.getMethod( "instance" );
+    _javaParser = instanceMethod.invoke( null );
+    _compileMethod = javaParserClass.getMethod( "compile", Collection.class, Iterable.class, DiagnosticCollector.class );
+  }
+
+  @Override
+  public void refreshedTypes( RefreshRequest request )
+  {
+    if( isManifoldResource( request ) )
+    {
+      _stale = true;
+    }
+  }
+
+  /**
+   * @return True if a type manifold produces types from the request's file, the host may have cached them
+   */
+  private static boolean isManifoldResource( RefreshRequest request )
+  {
+    return request.file != null &&
+           request.module instanceof ManModule &&
+           !((ManModule)request.module).findTypeManifoldsFor( request.file ).isEmpty();
+  }
+
+  @Override
+  public void refreshed()
+  {
+    // a bulk change or a roots change, resources may have changed wholesale
+    _stale = true;
+  }
+
+  @Override
+  public synchronized void dispose()
+  {
+    close();
+  }
+
+  private void close()
+  {
+    _fingerprint = null;
+    _javaParser = null;
+    _compileMethod = null;
+    _noManifold = false;
+    if( _loader != null )
+    {
+      try
+      {
+        _loader.close();
+      }
+      catch( IOException e )
+      {
+        LOG.warn( e );
+      }
+      _loader = null;
+    }
+  }
+
+  private List<File> makeCompilerClassPath()
+  {
+    List<File> outputRoots = new ArrayList<>();
+    ApplicationManager.getApplication().runReadAction(
+      () -> {
+         final List<VirtualFile> allDirs = OrderEnumerator.orderEntries( _project ).withoutSdk().getPathsList().getRootDirs();
+         for( VirtualFile dir : allDirs )
+         {
+           outputRoots.add( new File( getPath( dir ) ) );
+         }
+       } );
+    return outputRoots;
+  }
+
+  private static URL[] toUrls( List<File> files )
+  {
+    URL[] urls = new URL[files.size()];
+    for( int i = 0; i < urls.length; i++ )
+    {
+      try
+      {
+        urls[i] = files.get( i ).toURI().toURL();
+      }
+      catch( MalformedURLException e )
+      {
+        throw new RuntimeException( e );
+      }
+    }
+    return urls;
+  }
+
+  @NotNull
+  private static String getPath( VirtualFile dir )
+  {
+    String url = dir.getUrl();
+    String path = dir.getPath();
+    if( url.startsWith( "jar:" ) && path.endsWith( "!/" ) )
+    {
+      path = path.substring( 0, path.length()-2 );
+    }
+    return path.replace( '/', File.separatorChar );
+  }
+}
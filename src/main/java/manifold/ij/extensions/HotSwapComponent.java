@@ -22,36 +22,48 @@ import com.intellij.openapi.application.PathManager;
 import com.intellij.openapi.compiler.CompilationStatusListener;
 import com.intellij.openapi.compiler.CompileContext;
 import com.intellij.openapi.compiler.CompilerTopics;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.roots.OrderEnumerator;
+import com.intellij.openapi.roots.ProjectFileIndex;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileContentChangeEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileCopyEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileCreateEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
 import com.intellij.openapi.wm.ToolWindowId;
 import com.intellij.util.SmartList;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.HashMap;
 import com.intellij.util.messages.MessageBusConnection;
+import com.intellij.util.ui.MessageCategory;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.reflect.Method;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
-import javax.tools.DiagnosticCollector;
 import javax.tools.JavaFileObject;
 import javax.tools.SimpleJavaFileObject;
 import manifold.api.fs.IFile;
@@ -60,9 +72,10 @@ import manifold.ext.IExtensionClassProducer;
 import manifold.ij.core.IjManifoldHost;
 import manifold.ij.core.ManModule;
 import manifold.ij.core.ManProject;
+import manifold.ij.util.FP64;
+import manifold.ij.util.KeyedDebouncer;
 import manifold.internal.host.ManifoldHost;
 import manifold.internal.javac.InMemoryClassJavaFileObject;
-import manifold.internal.javac.JavaParser;
 import manifold.util.StreamUtil;
 import org.jetbrains.annotations.NotNull;
 
@@ -70,9 +83,22 @@ import org.jetbrains.annotations.NotNull;
  */
 public class HotSwapComponent implements DebuggerManagerListener
 {
+  private static final Logger LOG = Logger.getInstance( HotSwapComponent.class );
+
+  // consecutive compilations e.g., automake, result in a single swap
+  private static final int HOTSWAP_DELAY_MS = 200;
+  private static final int HOTSWAP_MAX_LATENCY_MS = 2000;
+  private static final String HOTSWAP_TASK_ID = "manifold.hotswap";
+  private static final int MAX_COMPILE_THREADS = Math.max( 1, Math.min( 4, Runtime.getRuntime().availableProcessors() - 1 ) );
+
   private ManProject _manProject;
+  private KeyedDebouncer _hotSwapDebouncer;
+  private HotSwapCompilationHost _compilationHost;
+  private ExecutorService _compileExecutor;
   private MessageBusConnection _conn;
-  private Map<DebuggerSession, Long> _timeStamps;
+  private final Map<DebuggerSession, Set<VirtualFile>> _dirtyFiles;
+  // fingerprints of the class files last swapped into each session
+  private final Map<DebuggerSession, Map<String, Long>> _swappedClasses;
 
   public static void attach( ManProject manProject )
   {
@@ -83,7 +109,15 @@ public class HotSwapComponent implements DebuggerManagerListener
   private HotSwapComponent( ManProject manProject )
   {
     _manProject = manProject;
-    _timeStamps = new HashMap<>();
+    _dirtyFiles = new ConcurrentHashMap<>();
+    _swappedClasses = new ConcurrentHashMap<>();
+    _hotSwapDebouncer = new KeyedDebouncer( HOTSWAP_MAX_LATENCY_MS );
+    Disposer.register( manProject.getNativeProject(), _hotSwapDebouncer );
+    _compilationHost = new HotSwapCompilationHost( manProject.getNativeProject() );
+    Disposer.register( manProject.getNativeProject(), _compilationHost );
+    manProject.getFileModificationManager().getManRefresher().addTypeLoaderListenerAsWeakRef( _compilationHost );
+    _compileExecutor = AppExecutorUtil.createBoundedApplicationPoolExecutor( "Manifold Hot Swap", MAX_COMPILE_THREADS );
+    Disposer.register( manProject.getNativeProject(), () -> _compileExecutor.shutdownNow() );
   }
 
   public void sessionCreated( DebuggerSession session )
@@ -91,22 +125,28 @@ public class HotSwapComponent implements DebuggerManagerListener
   }
   public void sessionRemoved( DebuggerSession session )
   {
+    _dirtyFiles.remove( session );
+    _swappedClasses.remove( session );
   }
 
   @Override
   public void sessionAttached( DebuggerSession session )
   {
+    _dirtyFiles.putIfAbsent( session, ContainerUtil.newConcurrentSet() );
+    _swappedClasses.putIfAbsent( session, new ConcurrentHashMap<>() );
     if( _conn == null )
     {
       _conn = getIjProject().getMessageBus().connect();
       _conn.subscribe( CompilerTopics.COMPILATION_STATUS, new CompilationStatusHandler() );
-      _timeStamps.put( session, System.currentTimeMillis() );
+      _conn.subscribe( VirtualFileManager.VFS_CHANGES, new DirtyFileTracker() );
     }
   }
 
   @Override
   public void sessionDetached( DebuggerSession session )
   {
+    _dirtyFiles.remove( session );
+    _swappedClasses.remove( session );
     if( !getHotSwappableDebugSessions().isEmpty() )
     {
       return;
@@ -127,37 +167,48 @@ public class HotSwapComponent implements DebuggerManagerListener
       .collect( Collectors.toCollection( SmartList::new ) );
   }
 
-  private void reloadModifiedClasses( final Map<DebuggerSession, Map<String, HotSwapFile>> modifiedClasses, final HotSwapProgressImpl progress )
+  private void reloadModifiedClasses( final Map<DebuggerSession, Map<String, HotSwapFile>> modifiedClasses, final HotSwapProgressImpl progress, Staging staging )
   {
     ProgressManager.getInstance().runProcess(
       () -> {
-        HotSwapManager.reloadModifiedClasses( modifiedClasses, progress );
-        progress.finished();
+        try
+        {
+          HotSwapManager.reloadModifiedClasses( modifiedClasses, progress );
+          if( !progress.isCancelled() )
+          {
+            staging.commit();
+          }
+        }
+        finally
+        {
+          staging.dispose();
+          progress.finished();
+        }
       }, progress.getProgressIndicator() );
   }
 
-  private long getTimeStamp( DebuggerSession session )
-  {
-    Long tStamp = _timeStamps.get( session );
-    return tStamp != null ? tStamp.longValue() : 0;
-  }
-
-  void setTimeStamp( DebuggerSession session, long tStamp )
-  {
-    _timeStamps.put( session, Long.valueOf( tStamp ) );
-  }
-
   private void hotSwapSessions( final List<DebuggerSession> sessions )
   {
     HotSwapProgressImpl findClassesProgress = new HotSwapProgressImpl( getIjProject() );
 
     ApplicationManager.getApplication().executeOnPooledThread( () ->
     {
-      final Map<DebuggerSession, Map<String, HotSwapFile>> modifiedClasses = scanForModifiedClassesWithProgress( sessions, findClassesProgress );
+      final Staging staging = new Staging();
+      final Map<DebuggerSession, Map<String, HotSwapFile>> modifiedClasses;
+      try
+      {
+        modifiedClasses = scanForModifiedClassesWithProgress( sessions, findClassesProgress, staging );
+      }
+      catch( RuntimeException e )
+      {
+        staging.dispose();
+        throw e;
+      }
 
       final Application application = ApplicationManager.getApplication();
       if( modifiedClasses.isEmpty() )
       {
+        staging.dispose();
         final String message = DebuggerBundle.message( "status.hotswap.uptodate" );
         NotificationGroup.toolWindowGroup( "HotSwap", ToolWindowId.DEBUG ).createNotification( message, NotificationType.INFORMATION ).notify( getIjProject() );
         return;
@@ -167,26 +218,38 @@ public class HotSwapComponent implements DebuggerManagerListener
       {
         if( !modifiedClasses.isEmpty() )
         {
-          final HotSwapProgressImpl progress = new HotSwapProgressImpl( getIjProject() );
+          final HotSwapProgressImpl progress = new HotSwapProgressImpl( getIjProject() )
+          {
+            @Override
+            public void addMessage( DebuggerSession session, int type, String text )
+            {
+              // the classes of a session reporting an error may not have been redefined
+              if( type == MessageCategory.ERROR )
+              {
+                staging.failed( session );
+              }
+              super.addMessage( session, type, text );
+            }
+          };
           if( modifiedClasses.keySet().size() == 1 )
           {
             //noinspection ConstantConditions
             progress.setSessionForActions( ContainerUtil.getFirstItem( modifiedClasses.keySet() ) );
           }
-          application.executeOnPooledThread( () -> reloadModifiedClasses( modifiedClasses, progress ) );
+          application.executeOnPooledThread( () -> reloadModifiedClasses( modifiedClasses, progress, staging ) );
         }
       }, ModalityState.NON_MODAL );
     } );
   }
 
-  private Map<DebuggerSession, Map<String, HotSwapFile>> scanForModifiedClassesWithProgress( List<DebuggerSession> sessions, HotSwapProgressImpl progress )
+  private Map<DebuggerSession, Map<String, HotSwapFile>> scanForModifiedClassesWithProgress( List<DebuggerSession> sessions, HotSwapProgressImpl progress, Staging staging )
   {
     Ref<Map<DebuggerSession, Map<String, HotSwapFile>>> result = Ref.create( null );
     ProgressManager.getInstance().runProcess(
       () -> {
         try
         {
-          result.set( scanForModifiedClasses( sessions, progress ) );
+          result.set( scanForModifiedClasses( sessions, progress, staging ) );
         }
         finally
         {
@@ -196,7 +259,7 @@ public class HotSwapComponent implements DebuggerManagerListener
     return result.get();
   }
 
-  public Map<DebuggerSession, Map<String, HotSwapFile>> scanForModifiedClasses( List<DebuggerSession> sessions, HotSwapProgress swapProgress )
+  public Map<DebuggerSession, Map<String, HotSwapFile>> scanForModifiedClasses( List<DebuggerSession> sessions, HotSwapProgress swapProgress, Staging staging )
   {
     Map<DebuggerSession, Map<String, HotSwapFile>> modifiedClasses = new HashMap<>();
 
@@ -213,7 +276,7 @@ public class HotSwapComponent implements DebuggerManagerListener
           protected void action() throws Exception
           {
             swapProgress.setDebuggerSession( debuggerSession );
-            Map<String, HotSwapFile> sessionClasses = scanForModifiedClasses( debuggerSession, swapProgress );
+            Map<String, HotSwapFile> sessionClasses = scanForModifiedClasses( debuggerSession, swapProgress, staging );
             if( !sessionClasses.isEmpty() )
             {
               modifiedClasses.put( debuggerSession, sessionClasses );
@@ -237,156 +300,184 @@ public class HotSwapComponent implements DebuggerManagerListener
     return modifiedClasses;
   }
 
-  public Map<String, HotSwapFile> scanForModifiedClasses( DebuggerSession session, HotSwapProgress progress )
+  public Map<String, HotSwapFile> scanForModifiedClasses( DebuggerSession session, HotSwapProgress progress, Staging staging )
   {
     DebuggerManagerThreadImpl.assertIsManagerThread();
 
     Map<String, HotSwapFile> modifiedClasses = new HashMap<>();
 
-    List<File> outputRoots = new ArrayList<>();
-    ApplicationManager.getApplication().runReadAction(
-      () -> {
-         VirtualFile[] allDirs = OrderEnumerator.orderEntries( getIjProject() ).getAllSourceRoots();
-         for( VirtualFile dir : allDirs )
-         {
-           outputRoots.add( new File( dir.getPath() ) );
-         }
-       } );
-    long timeStamp = getTimeStamp( session );
-    for( File root : outputRoots )
+    // gather the types of all changed files first, each module then compiles its types together
+    Set<VirtualFile> dirtyFiles = takeDirtyFiles( session );
+    Map<ManModule, Set<String>> typesByModule = new LinkedHashMap<>();
+    for( VirtualFile file : dirtyFiles )
     {
-      String rootPath = FileUtil.toCanonicalPath( root.getPath() );
-      collectModifiedClasses( root, rootPath, modifiedClasses, progress, timeStamp );
+      if( progress.isCancelled() )
+      {
+        restoreDirtyFiles( session, dirtyFiles );
+        return modifiedClasses;
+      }
+      if( file.isValid() )
+      {
+        progress.setText( DebuggerBundle.message( "progress.hotswap.scanning.path", file.getPath() ) );
+        collectModifiedTypes( file, typesByModule );
+      }
+    }
+
+    try
+    {
+      if( !compileModifiedTypes( session, typesByModule, modifiedClasses, progress, staging ) )
+      {
+        restoreDirtyFiles( session, dirtyFiles );
+      }
+    }
+    catch( RuntimeException e )
+    {
+      // a failed compilation must not lose the changes, they are compiled again with the next swap
+      restoreDirtyFiles( session, dirtyFiles );
+      throw e;
     }
-    setTimeStamp( session, System.currentTimeMillis() );
     return modifiedClasses;
   }
 
-  private boolean collectModifiedClasses( File file, String filePath, Map<String, HotSwapFile> container, HotSwapProgress progress, long timeStamp )
+  private Set<VirtualFile> takeDirtyFiles( DebuggerSession session )
+  {
+    Set<VirtualFile> dirtyFiles = _dirtyFiles.replace( session, ContainerUtil.newConcurrentSet() );
+    return dirtyFiles == null ? Collections.emptySet() : dirtyFiles;
+  }
+
+  private void restoreDirtyFiles( DebuggerSession session, Set<VirtualFile> dirtyFiles )
   {
-    if( progress.isCancelled() )
+    // scan again next time
+    Set<VirtualFile> current = _dirtyFiles.get( session );
+    if( current != null )
     {
-      return false;
+      current.addAll( dirtyFiles );
     }
+  }
 
-    final File[] files = file.listFiles();
-    if( files != null )
+  private void collectModifiedTypes( VirtualFile file, Map<ManModule, Set<String>> typesByModule )
+  {
+    IFile ifile = _manProject.getFileSystem().getIFile( file );
+    Set<ITypeManifold> seen = new HashSet<>();
+    for( ManModule module: _manProject.findRootModules() )
     {
-      for( File child : files )
+      Set<ITypeManifold> typeManifolds = module.findTypeManifoldsFor( ifile );
+      if( !typeManifolds.isEmpty() )
       {
-        if( !collectModifiedClasses( child, filePath + "/" + child.getName(), container, progress, timeStamp ) )
+        Set<String> fqns = new HashSet<>();
+        for( ITypeManifold sp : typeManifolds )
         {
-          return false;
+          if( seen.contains( sp ) )
+          {
+            continue;
+          }
+          fqns.addAll( Arrays.asList( sp.getTypesForFile( ifile ) ) );
+
+          if( sp instanceof IExtensionClassProducer )
+          {
+            fqns.addAll( ((IExtensionClassProducer)sp).getExtendedTypesForFile( ifile ) );
+          }
+        }
+        seen.addAll( typeManifolds );
+
+        if( !fqns.isEmpty() )
+        {
+          typesByModule.computeIfAbsent( module, k -> new LinkedHashSet<>() ).addAll( fqns );
         }
       }
     }
-    else
+  }
+
+  /**
+   * @return False if cancelled
+   */
+  private boolean compileModifiedTypes( DebuggerSession session, Map<ManModule, Set<String>> typesByModule,
+                                        Map<String, HotSwapFile> container, HotSwapProgress progress, Staging staging )
+  {
+    List<Future<Collection<InMemoryClassJavaFileObject>>> futures = new ArrayList<>();
+    for( Map.Entry<ManModule, Set<String>> entry : typesByModule.entrySet() )
     {
-      if( !filePath.toLowerCase().endsWith( ".java" ) )
+      futures.add( _compileExecutor.submit( () -> compileModule( entry.getKey(), entry.getValue() ) ) );
+    }
+
+    try
+    {
+      for( Future<Collection<InMemoryClassJavaFileObject>> future : futures )
       {
-        if( file.lastModified() > timeStamp )
+        if( progress.isCancelled() )
+        {
+          return false;
+        }
+        for( InMemoryClassJavaFileObject obj : future.get() )
         {
-          IFile ifile = _manProject.getFileSystem().getIFile( file );
-          Set<ITypeManifold> seen = new HashSet<>();
-          for( ManModule module: _manProject.findRootModules() )
+          // the session already runs this version of the class
+          File file = staging.stage( session, obj.getClassName(), obj.getBytes() );
+          if( file != null )
           {
-            Set<ITypeManifold> typeManifolds = module.findTypeManifoldsFor( ifile );
-            if( !typeManifolds.isEmpty() )
-            {
-              Set<String> fqns = new HashSet<>();
-              for( ITypeManifold sp : typeManifolds )
-              {
-                if( seen.contains( sp ) )
-                {
-                  continue;
-                }
-                fqns.addAll( Arrays.asList( sp.getTypesForFile( ifile ) ) );
-
-                if( sp instanceof IExtensionClassProducer )
-                {
-                  fqns.addAll( ((IExtensionClassProducer)sp).getExtendedTypesForFile( ifile ) );
-                }
-              }
-              seen.addAll( typeManifolds );
-
-              Set<JavaFileObject> sourceFiles = new HashSet<>();
-              for( String fqn : fqns )
-              {
-                JavaFileObject sourceFile = module.produceFile( fqn, null );
-                if( sourceFile != null )
-                {
-                  sourceFiles.add( sourceFile );
-                }
-              }
-              if( !sourceFiles.isEmpty() )
-              {
-                ManModule previousModule = ((IjManifoldHost)ManifoldHost.instance()).setCurrentModule( module );
-                try
-                {
-                  Collection<InMemoryClassJavaFileObject> result = compileManifoldFiles( sourceFiles );
-                  result = result.stream().filter( e -> fqns.stream().anyMatch( fqn -> fqnContains( fqn, e.getClassName() ) ) ).collect( Collectors.toList() );
-                  Map<String, File> classes = makeTempFiles( result );
-                  progress.setText( DebuggerBundle.message( "progress.hotswap.scanning.path", filePath ) );
-                  for( Map.Entry<String, File> e : classes.entrySet() )
-                  {
-                    container.put( e.getKey(), new HotSwapFile( e.getValue() ) );
-                  }
-                }
-                finally
-                {
-                  ((IjManifoldHost)ManifoldHost.instance()).setCurrentModule( previousModule );
-                }
-              }
-            }
+            container.put( obj.getClassName(), new HotSwapFile( file ) );
           }
         }
       }
+      return true;
     }
-    return true;
-  }
-
-  private boolean fqnContains( String fqn, String testFqn )
-  {
-    boolean contains = false;
-    if( testFqn.startsWith( fqn ) )
+    catch( InterruptedException e )
     {
-      int len = fqn.length();
-      contains = testFqn.length() == len || testFqn.charAt( len ) == '$';
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    catch( ExecutionException e )
+    {
+      throw new RuntimeException( e.getCause() );
+    }
+    finally
+    {
+      futures.forEach( future -> future.cancel( false ) );
     }
-    return contains;
   }
 
-  private Collection<InMemoryClassJavaFileObject> compileManifoldFiles( Set<JavaFileObject> sourceFiles )
+  private Collection<InMemoryClassJavaFileObject> compileModule( ManModule module, Set<String> fqns )
   {
-    URLClassLoader cl = makeCompilationClassLoader();
+    ManModule previousModule = ((IjManifoldHost)ManifoldHost.instance()).setCurrentModule( module );
     try
     {
-      Class<?> manifoldHostClass;
-      try
+      Set<JavaFileObject> sourceFiles = new HashSet<>();
+      for( String fqn : fqns )
       {
-        manifoldHostClass = Class.forName( ManifoldHost.class.getName(), true, cl );
+        JavaFileObject sourceFile = module.produceFile( fqn, null );
+        if( sourceFile != null )
+        {
+          sourceFiles.add( sourceFile );
+        }
       }
-      catch( ClassNotFoundException cnfe )
+      if( sourceFiles.isEmpty() )
       {
-        // The project does not have manifold as a dependency
         return Collections.emptyList();
       }
 
-      Method bootstrapMethod = manifoldHostClass.getMethod( "bootstrap", List.class, List.class );
-      bootstrapMethod.invoke( null, Collections.emptyList(), makeCompilerClassPath() );
-
-      Class<?> javaParserClass = Class.forName( JavaParser.class.getName(), true, cl );
-      Method instanceMethod = javaParserClass.getMethod( "instance" );
-      Object javaParser = instanceMethod.invoke( null );
-      Method compileMethod = javaParserClass.getMethod( "compile", Collection.class, Iterable.class, DiagnosticCollector.class );
-      Collection result = (Collection)compileMethod.invoke( javaParser, sourceFiles, Arrays.asList( "-g", "-nowarn", "-Xlint:none", "-proc:none", "-parameters" ), null );
-      //noinspection unchecked
-      return (Collection)result.stream().map( f -> makeInMemoryClassJavaFileObject( (SimpleJavaFileObject)f ) ).collect( Collectors.toList() );
+      Collection<InMemoryClassJavaFileObject> result = compileManifoldFiles( sourceFiles );
+      return result.stream().filter( e -> fqns.stream().anyMatch( fqn -> fqnContains( fqn, e.getClassName() ) ) ).collect( Collectors.toList() );
     }
-    catch( Exception e )
+    finally
     {
-      throw new RuntimeException( e );
+      ((IjManifoldHost)ManifoldHost.instance()).setCurrentModule( previousModule );
+    }
+  }
+
+  private boolean fqnContains( String fqn, String testFqn )
+  {
+    boolean contains = false;
+    if( testFqn.startsWith( fqn ) )
+    {
+      int len = fqn.length();
+      contains = testFqn.length() == len || testFqn.charAt( len ) == '$';
     }
+    return contains;
+  }
+
+  private Collection<InMemoryClassJavaFileObject> compileManifoldFiles( Set<JavaFileObject> sourceFiles )
+  {
+    Collection<?> result = _compilationHost.compile( sourceFiles );
+    return result.stream().map( f -> makeInMemoryClassJavaFileObject( (SimpleJavaFileObject)f ) ).collect( Collectors.toList() );
   }
 
   private InMemoryClassJavaFileObject makeInMemoryClassJavaFileObject( SimpleJavaFileObject f )
@@ -407,89 +498,125 @@ public class HotSwapComponent implements DebuggerManagerListener
     return memF;
   }
 
-  @NotNull
-  private URLClassLoader makeCompilationClassLoader()
-  {
-    return new URLClassLoader( makeClassLoaderClassPath() );
-  }
-
-  private List<File> makeCompilerClassPath()
-  {
-    List<File> outputRoots = new ArrayList<>();
-    ApplicationManager.getApplication().runReadAction(
-      () -> {
-         final List<VirtualFile> allDirs = OrderEnumerator.orderEntries( getIjProject() ).withoutSdk().getPathsList().getRootDirs();
-         for( VirtualFile dir : allDirs )
-         {
-           outputRoots.add( new File( getPath( dir ) ) );
-         }
-       } );
-    return outputRoots;
-  }
-
-  private URL[] makeClassLoaderClassPath()
-  {
-    List<URL> outputRoots = new ArrayList<>();
-        ApplicationManager.getApplication().runReadAction(
-          () -> {
-             final List<VirtualFile> allDirs = OrderEnumerator.orderEntries( getIjProject() ).withoutSdk().getPathsList().getRootDirs();
-             for( VirtualFile dir : allDirs )
-             {
-               try
-               {
-                 outputRoots.add( new File( getPath( dir ) ).toURI().toURL() );
-               }
-               catch( MalformedURLException e )
-               {
-                 throw new RuntimeException( e );
-               }
-             }
-           } );
-        return outputRoots.toArray( new URL[outputRoots.size()] );
-  }
-
-  @NotNull
-  private String getPath( VirtualFile dir )
+  /**
+   * Class files compiled for one hot swap. Classes identical to the version a session already runs are not staged.
+   * HotSwapManager reads classes from files, staged files are deleted once the swap is done.
+   */
+  class Staging
   {
-    String url = dir.getUrl();
-    String path = dir.getPath();
-    if( url.startsWith( "jar:" ) && path.endsWith( "!/" ) )
+    private final Map<DebuggerSession, Map<String, Long>> _fingerprints = new ConcurrentHashMap<>();
+    private final Set<DebuggerSession> _failed = ContainerUtil.newConcurrentSet();
+    private final List<File> _files = ContainerUtil.createConcurrentList();
+
+    /**
+     * @return The file to swap in, or null if the session already has this class content
+     */
+    File stage( DebuggerSession session, String className, byte[] bytes )
     {
-      path = path.substring( 0, path.length()-2 );
+      long fingerprint = new FP64( bytes ).getRawFingerprint();
+      Map<String, Long> swapped = _swappedClasses.get( session );
+      Long previous = swapped == null ? null : swapped.get( className );
+      if( previous != null && previous == fingerprint )
+      {
+        return null;
+      }
+
+      try
+      {
+        File file = FileUtil.createTempFile( new File( PathManager.getTempPath() ), "manifoldHotSwap", ".class", true, true );
+        FileUtil.writeToFile( file, bytes );
+        _files.add( file );
+        _fingerprints.computeIfAbsent( session, k -> new ConcurrentHashMap<>() ).put( className, fingerprint );
+        return file;
+      }
+      catch( IOException e )
+      {
+        throw new RuntimeException( e );
+      }
     }
-    return path.replace( '/', File.separatorChar );
-  }
 
-  private Map<String, File> makeTempFiles( Collection<InMemoryClassJavaFileObject> result )
-  {
-    Map<String, File> map = new HashMap<>();
-    for( InMemoryClassJavaFileObject obj: result )
+    void failed( DebuggerSession session )
     {
-      map.put( obj.getClassName(), createTempFile( obj.getBytes() ) );
+      _failed.add( session );
     }
-    return map;
-  }
 
-  private File createTempFile( byte[] bytes )
-  {
-    try
+    /**
+     * Record the classes swapped into sessions that reported no error, a failed session is sent its classes again
+     */
+    void commit()
     {
-      File file = FileUtil.createTempFile( new File( PathManager.getTempPath() ), "manifoldHotSwap", ".class" );
-      FileUtil.writeToFile( file, bytes );
-      return file;
+      for( Map.Entry<DebuggerSession, Map<String, Long>> entry : _fingerprints.entrySet() )
+      {
+        if( _failed.contains( entry.getKey() ) )
+        {
+          continue;
+        }
+        Map<String, Long> swapped = _swappedClasses.get( entry.getKey() );
+        if( swapped != null )
+        {
+          swapped.putAll( entry.getValue() );
+        }
+      }
     }
-    catch( IOException e )
+
+    void dispose()
     {
-      throw new RuntimeException( e );
+      for( File file : _files )
+      {
+        FileUtil.delete( file );
+      }
+      _files.clear();
     }
   }
 
-
   private Project getIjProject()
   {
     return _manProject.getNativeProject();
   }
 
+  /**
+   * Collects the resource files changed while debugging, these are the only files considered for hot swap
+   */
+  private class DirtyFileTracker extends BulkFileListener.Adapter
+  {
+    @Override
+    public void after( @NotNull List<? extends VFileEvent> events )
+    {
+      if( _dirtyFiles.isEmpty() || getIjProject().isDisposed() )
+      {
+        return;
+      }
+
+      ProjectFileIndex fileIndex = ProjectFileIndex.getInstance( getIjProject() );
+      for( VFileEvent event : events )
+      {
+        if( event instanceof VFileContentChangeEvent || event instanceof VFileCreateEvent ||
+            event instanceof VFileMoveEvent || event instanceof VFileCopyEvent || isRename( event ) )
+        {
+          VirtualFile file = event instanceof VFileCopyEvent
+                             ? ((VFileCopyEvent)event).findCreatedFile()
+                             : event.getFile();
+          if( file != null && !file.isDirectory() &&
+              !file.getName().toLowerCase().endsWith( ".java" ) &&
+              fileIndex.isInSourceContent( file ) )
+          {
+            for( Set<VirtualFile> dirtyFiles : _dirtyFiles.values() )
+            {
+              dirtyFiles.add( file );
+            }
+          }
+        }
+      }
+    }
+
+    private boolean isRename( VFileEvent event )
+    {
+      // a renamed resource produces types of the new name
+      return event instanceof VFilePropertyChangeEvent &&
+             VirtualFile.PROP_NAME.equals( ((VFilePropertyChangeEvent)event).getPropertyName() );
+    }
+  }
+
   private class CompilationStatusHandler implements CompilationStatusListener
   {
     public void compilationFinished( boolean aborted, int errors, int warnings, CompileContext compileContext )
@@ -504,11 +631,22 @@ public class HotSwapComponent implements DebuggerManagerListener
         return;
       }
 
-      List<DebuggerSession> sessions = getHotSwappableDebugSessions();
-      if( !sessions.isEmpty() )
-      {
-        hotSwapSessions( sessions );
-      }
+      _hotSwapDebouncer.schedule( HOTSWAP_TASK_ID, HOTSWAP_DELAY_MS, () -> {
+        if( getIjProject().isDisposed() )
+        {
+          return;
+        }
+        if( LOG.isDebugEnabled() )
+        {
+          LOG.debug( "Manifold: hot swap after compilation, swaps scheduled: " + _hotSwapDebouncer.getScheduledCount() +
+                     ", coalesced: " + _hotSwapDebouncer.getCoalescedCount() + ", executed: " + _hotSwapDebouncer.getExecutedCount() );
+        }
+        List<DebuggerSession> sessions = getHotSwappableDebugSessions();
+        if( !sessions.isEmpty() )
+        {
+          hotSwapSessions( sessions );
+        }
+      } );
     }
   }
 }
@@ -79,6 +79,12 @@ public class ManAugmentProvider extends PsiAugmentProvider
       return Collections.emptyList();
     }
 
+    if( !ManProject.isReady( element.getProject() ) )
+    {
+      // skip processing while modules are defined in the background
+      return Collections.emptyList();
+    }
+
     if( !(element instanceof PsiClass) || !element.isValid() || !PsiMethod.class.isAssignableFrom( cls ) )
     {
       return Collections.emptyList();
@@ -131,6 +137,10 @@ public class ManAugmentProvider extends PsiAugmentProvider
   private void addMethods( String fqn, PsiClass psiClass, List<PsiElement> augFeatures, Module start, Module module )
   {
     ManModule manModule = ManProject.getModule( module );
+    if( manModule == null )
+    {
+      return;
+    }
     for( ITypeManifold tm : manModule.getTypeManifolds() )
     {
       if( tm.getContributorKind() == Supplemental )
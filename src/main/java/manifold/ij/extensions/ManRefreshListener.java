@@ -4,10 +4,14 @@
 
 package manifold.ij.extensions;
 
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 import manifold.api.fs.IResource;
 import manifold.api.host.ITypeLoaderListener;
@@ -15,6 +19,7 @@ import manifold.api.host.RefreshKind;
 import manifold.api.host.RefreshRequest;
 import manifold.ij.core.ManModule;
 import manifold.ij.core.ManProject;
+import manifold.ij.core.ModuleRootIndex;
 import manifold.ij.fs.IjFile;
 
 public class ManRefreshListener
@@ -59,7 +64,7 @@ public class ManRefreshListener
     }
   }
 
-  private List<ITypeLoaderListener> getListeners()
+  List<ITypeLoaderListener> getListeners()
   {
     List<ITypeLoaderListener> listeners = new ArrayList<>( _listeners.size() );
     List<WeakReference<ITypeLoaderListener>> obsoleteListeners = null;
@@ -119,6 +124,25 @@ public class ManRefreshListener
     }
   }
 
+  /**
+   * Like {@link #nukeFromOrbit()}, but for a root change that rebuilt some of the project's modules. The PsiClass
+   * cache drops only the types of the replaced modules, other listeners are refreshed.
+   */
+  public void refreshedModules( Collection<ManModule> obsolete )
+  {
+    for( ITypeLoaderListener listener : getListeners() )
+    {
+      if( listener instanceof ManifoldPsiClassCache )
+      {
+        ((ManifoldPsiClassCache)listener).refreshedModules( obsolete );
+      }
+      else
+      {
+        listener.refreshed();
+      }
+    }
+  }
+
   private void notify( IResource res, RefreshKind kind  )
   {
     if( !(res instanceof IjFile) )
@@ -126,26 +150,72 @@ public class ManRefreshListener
       return;
     }
 
-    IjFile file = (IjFile)res;
-    for( ManModule module: _manProject.getModules() )
+    RefreshBatch batch = new RefreshBatch();
+    batch.add( (IjFile)res, kind );
+    refresh( batch );
+  }
+
+  /**
+   * Dispatch one batched refresh per module for all the files in {@code batch}
+   */
+  void refresh( RefreshBatch batch )
+  {
+    if( batch.isEmpty() )
     {
-      String[] fqns = module.getTypesForFile( file );
-      RefreshRequest request = new RefreshRequest( file, fqns, module, module, kind );
-      List<ITypeLoaderListener> listeners = getListeners();
-      switch( kind )
+      return;
+    }
+
+    List<ITypeLoaderListener> listeners = getListeners();
+    route( batch ).forEach( ( module, moduleBatch ) -> refresh( moduleBatch, module, listeners ) );
+  }
+
+  /**
+   * Split {@code batch} by the modules its files matter to, the modules having a root containing a file and
+   * the modules seeing those as dependencies. Other modules can't have types for the files.
+   */
+  Map<ManModule, RefreshBatch> route( RefreshBatch batch )
+  {
+    ModuleRootIndex rootIndex = _manProject.getRootIndex();
+    Map<ManModule, RefreshBatch> routes = new LinkedHashMap<>();
+    batch.forEach( ( file, kind ) -> {
+      for( ManModule module : rootIndex.findModulesSeeing( file ) )
+      {
+        routes.computeIfAbsent( module, k -> new RefreshBatch() ).add( file, kind );
+      }
+    } );
+    return routes;
+  }
+
+  /**
+   * Dispatch the batched refresh for a single module. Cancellable, types are computed before any listener is
+   * notified.
+   */
+  void refresh( RefreshBatch batch, ManModule module, List<ITypeLoaderListener> listeners )
+  {
+    List<RefreshRequest> requests = new ArrayList<>( batch.size() );
+    batch.forEach( ( file, kind ) -> {
+      ProgressManager.checkCanceled();
+      requests.add( new RefreshRequest( file, module.getTypesForFile( file ), module, module, kind ) );
+    } );
+    notify( requests, listeners );
+  }
+
+  private void notify( List<RefreshRequest> requests, List<ITypeLoaderListener> listeners )
+  {
+    for( RefreshRequest request : requests )
+    {
+      // for creation the file system needs to be updated *before* other listeners
+      if( request.kind != RefreshKind.DELETION )
+      {
+        notifyEarlyListeners( request, listeners );
+      }
+
+      notifyNonearlyListeners( request, listeners );
+
+      // for deletion the file system needs to be updated *after* other listeners
+      if( request.kind == RefreshKind.DELETION )
       {
-        case CREATION:
-        case MODIFICATION:
-          // for creation the file system needs to be updated *before* other listeners
-          notifyEarlyListeners( request, listeners );
-          notifyNonearlyListeners( request, listeners );
-          break;
-
-        case DELETION:
-          // for deletion the file system needs to be updated *after* other listeners
-          notifyNonearlyListeners( request, listeners );
-          notifyEarlyListeners( request, listeners );
-          break;
+        notifyEarlyListeners( request, listeners );
       }
     }
   }
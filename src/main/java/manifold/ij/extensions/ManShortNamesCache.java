@@ -34,6 +34,12 @@ public class ManShortNamesCache extends PsiShortNamesCache
   @Override
   public PsiClass[] getClassesByName( @NotNull @NonNls String name, @NotNull GlobalSearchScope scope )
   {
+    if( !ManProject.isReady( _psiManager.getProject() ) )
+    {
+      // modules are being defined in the background
+      return PsiClass.EMPTY_ARRAY;
+    }
+
     Set<PsiClass> psiClasses = new HashSet<>();
     for( ManModule module: ManTypeFinder.findModules( scope ) )
     {
@@ -85,6 +91,11 @@ public class ManShortNamesCache extends PsiShortNamesCache
   @Override
   public void getAllClassNames( @NotNull HashSet<String> dest )
   {
+    if( !ManProject.isReady( _psiManager.getProject() ) )
+    {
+      return;
+    }
+
     final ManProject manProject = ManProject.manProjectFrom( _psiManager.getProject() );
     for( ManModule module: manProject.findRootModules() )
     {
@@ -93,6 +93,12 @@ public class ManTypeFinder extends PsiElementFinder
 
   public static List<ManModule> findModules( GlobalSearchScope scope )
   {
+    if( !ManProject.isReady( scope.getProject() ) )
+    {
+      // modules are being defined in the background
+      return Collections.emptyList();
+    }
+
     if( scope instanceof ModuleWithDependenciesScope )
     {
       Module module = ((ModuleWithDependenciesScope)scope).getModule();
@@ -2,7 +2,6 @@ package manifold.ij.extensions;
 
 import com.intellij.navigation.ItemPresentation;
 import com.intellij.navigation.ItemPresentationProviders;
-import com.intellij.openapi.module.Module;
 import com.intellij.psi.PsiClass;
 import com.intellij.psi.PsiField;
 import com.intellij.psi.PsiMethod;
@@ -12,7 +11,6 @@ import com.intellij.psi.impl.source.PsiExtensibleClass;
 import java.util.Arrays;
 import java.util.List;
 import manifold.ij.core.ManModule;
-import manifold.ij.core.ManProject;
 import org.jetbrains.annotations.NotNull;
 
 
@@ -65,10 +63,10 @@ public class ManifoldExtendedPsiClass extends LightClass implements PsiExtensibl
 //    return all.toArray( new PsiMethod[all.size()] );
 //  } );
 
-  public ManifoldExtendedPsiClass( Module module, PsiClass delegate )
+  public ManifoldExtendedPsiClass( ManModule module, PsiClass delegate )
   {
     super( delegate, delegate.getLanguage() );
-    _module = ManProject.getModule( module );
+    _module = module;
   }
 
 
@@ -5,7 +5,10 @@
 package manifold.ij.extensions;
 
 import com.intellij.ide.highlighter.JavaFileType;
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.openapi.module.Module;
 import com.intellij.openapi.module.ModuleUtil;
 import com.intellij.openapi.project.Project;
 import com.intellij.psi.JavaPsiFacade;
@@ -51,6 +54,7 @@ public class ManifoldPsiClassCache extends AbstractTypeSystemListener
   private static final ManifoldPsiClassCache INSTANCE = new ManifoldPsiClassCache();
   private Set<Project> _addedListeners = ContainerUtil.newConcurrentSet();
   private ThreadLocal<Set<String>> _shortcircuit = new ThreadLocal<>();
+  private Set<Project> _pendingModificationBumps = ContainerUtil.newConcurrentSet();
 
 
   public static ManifoldPsiClassCache instance()
@@ -59,7 +63,7 @@ public class ManifoldPsiClassCache extends AbstractTypeSystemListener
   }
 
   private final ConcurrentHashMap<String, PsiClass> _psi2Class = new ConcurrentHashMap<>();
-  private final ConcurrentHashMap<ManModule, FqnCache<PsiClass>> _type2Class = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Module, Partition> _partitions = new ConcurrentHashMap<>();
 
   public PsiClass getPsiClass( GlobalSearchScope scope, ManModule module, String fqn )
   {
@@ -80,7 +84,8 @@ public class ManifoldPsiClassCache extends AbstractTypeSystemListener
 
       // Find cached type...
 
-      FqnCache<PsiClass> map = _type2Class.computeIfAbsent( module, k -> new FqnCache<>() );
+      Partition partition = getPartition( module, true );
+      FqnCache<PsiClass> map = partition._types;
       FqnCacheNode<PsiClass> node = map.getNode( fqn );
       if( node != null )
       {
@@ -98,7 +103,7 @@ public class ManifoldPsiClassCache extends AbstractTypeSystemListener
       {
         try
         {
-          node = createPrimaryType( module, fqn, map );
+          node = createPrimaryType( module, fqn, partition );
         }
         catch( ConflictingTypeManifoldsException e )
         {
@@ -181,8 +186,9 @@ public class ManifoldPsiClassCache extends AbstractTypeSystemListener
   /**
    * Create a type corresponding with a Primary or Partial type manifold, as opposed to a Supplemental one.
    */
-  private FqnCacheNode<PsiClass> createPrimaryType( ManModule module, String fqn, FqnCache<PsiClass> map )
+  private FqnCacheNode<PsiClass> createPrimaryType( ManModule module, String fqn, Partition partition )
   {
+    FqnCache<PsiClass> map = partition._types;
     Set<ITypeManifold> sps = module.findTypeManifoldsFor( fqn );
     ITypeManifold found = null;
     if( !sps.isEmpty() )
@@ -212,7 +218,9 @@ public class ManifoldPsiClassCache extends AbstractTypeSystemListener
         map.add( fqn, psiFacadeClass );
         for( IFile file : files )
         {
-          _psi2Class.put( file.getPath().getPathString(), psiFacadeClass );
+          String pathString = file.getPath().getPathString();
+          _psi2Class.put( pathString, psiFacadeClass );
+          partition._paths.add( pathString );
         }
       }
     }
@@ -254,10 +262,9 @@ public class ManifoldPsiClassCache extends AbstractTypeSystemListener
       psiClass = psiClass != null ? psiClass : JavaPsiFacade.getInstance( module.getIjProject() ).findClass( fqn, GlobalSearchScope.allScope( module.getIjProject() ) );
       if( psiClass != null )
       {
-        psiClass = new ManifoldExtendedPsiClass( module.getIjModule(), psiClass );
+        psiClass = new ManifoldExtendedPsiClass( module, psiClass );
         psiClass.putUserData( ModuleUtil.KEY_MODULE, module.getIjModule() );
-        FqnCache<PsiClass> map = _type2Class.computeIfAbsent( module, k -> new FqnCache<>() );
-        map.add( fqn, psiClass );
+        getPartition( module, true )._types.add( fqn, psiClass );
       }
     }
     return psiClass;
@@ -342,7 +349,8 @@ public class ManifoldPsiClassCache extends AbstractTypeSystemListener
   public void refreshedTypes( RefreshRequest request )
   {
     final ManModule module = (ManModule)request.module;
-    FqnCache<PsiClass> map = _type2Class.get( module );
+    Partition partition = getPartition( module, false );
+    FqnCache<PsiClass> map = partition == null ? null : partition._types;
 
     if( map != null )
     {
@@ -374,7 +382,7 @@ public class ManifoldPsiClassCache extends AbstractTypeSystemListener
       PsiClass removedFacade = _psi2Class.remove( pathString );
       if( removedFacade != null )
       {
-        ((PsiModificationTrackerImpl)removedFacade.getManager().getModificationTracker()).incCounter();
+        incModificationCount( removedFacade.getProject() );
         if( map != null )
         {
           map.remove( removedFacade.getQualifiedName() );
@@ -383,6 +391,29 @@ public class ManifoldPsiClassCache extends AbstractTypeSystemListener
     }
   }
 
+  /**
+   * Refreshes run in the background, only the resulting modification count bump is posted to the EDT.
+   * Bumps requested while one is pending are coalesced.
+   */
+  private void incModificationCount( Project project )
+  {
+    Application app = ApplicationManager.getApplication();
+    if( app.isDispatchThread() )
+    {
+      ((PsiModificationTrackerImpl)PsiManager.getInstance( project ).getModificationTracker()).incCounter();
+      return;
+    }
+
+    if( _pendingModificationBumps.add( project ) )
+    {
+      app.invokeLater(
+        () -> {
+          _pendingModificationBumps.remove( project );
+          ((PsiModificationTrackerImpl)PsiManager.getInstance( project ).getModificationTracker()).incCounter();
+        }, project.getDisposed() );
+    }
+  }
+
   private Collection<String> getSupplementedTypesForFile( ITypeManifold tm, IFile file )
   {
     Set<String> types = new HashSet<>();
@@ -425,7 +456,78 @@ public class ManifoldPsiClassCache extends AbstractTypeSystemListener
   public void refreshed()
   {
     _psi2Class.clear();
-    _type2Class.clear();
+    _partitions.clear();
+  }
+
+  /**
+   * Drop the types cached for {@code modules}, other modules keep theirs
+   */
+  public void refreshedModules( Collection<ManModule> modules )
+  {
+    for( ManModule module : modules )
+    {
+      Partition partition = _partitions.get( module.getIjModule() );
+      if( partition != null && partition._module == module && _partitions.remove( module.getIjModule(), partition ) )
+      {
+        discard( partition );
+      }
+    }
+  }
+
+  /**
+   * @return The partition of cached types for {@code module}. A partition cached for a previous definition of the
+   * module is replaced, but only by a module of the current module graph. A module defined outside the graph e.g., one
+   * not yet committed to the project, gets a partition of its own that is not cached.
+   */
+  private Partition getPartition( ManModule module, boolean create )
+  {
+    Partition partition = _partitions.get( module.getIjModule() );
+    if( partition != null && partition._module == module )
+    {
+      return partition;
+    }
+
+    if( module.getProject().getModuleGraph().getModule( module.getIjModule() ) != module )
+    {
+      return create ? new Partition( module ) : null;
+    }
+
+    return _partitions.compute( module.getIjModule(), ( ijModule, existing ) -> {
+      if( existing != null && existing._module == module )
+      {
+        return existing;
+      }
+      if( existing != null )
+      {
+        discard( existing );
+      }
+      return create ? new Partition( module ) : null;
+    } );
+  }
+
+  private void discard( Partition partition )
+  {
+    for( String path : partition._paths )
+    {
+      _psi2Class.remove( path );
+    }
+  }
+
+  /**
+   * Types cached for a module
+   */
+  private static class Partition
+  {
+    private final ManModule _module;
+    private final FqnCache<PsiClass> _types;
+    private final Set<String> _paths;
+
+    Partition( ManModule module )
+    {
+      _module = module;
+      _types = new FqnCache<>();
+      _paths = ContainerUtil.newConcurrentSet();
+    }
   }
 
   private class PsiTreeChangeHandler extends PsiTreeChangeAdapter
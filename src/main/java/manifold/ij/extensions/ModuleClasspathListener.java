@@ -4,19 +4,18 @@
 
 package manifold.ij.extensions;
 
+import com.intellij.openapi.compiler.CompilerPaths;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.module.Module;
-import com.intellij.openapi.module.ModuleManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.ModuleRootEvent;
 import com.intellij.openapi.roots.ModuleRootListener;
 import com.intellij.openapi.roots.ModuleRootManager;
+import com.intellij.openapi.vfs.VirtualFile;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import manifold.api.fs.IDirectory;
-import manifold.api.host.Dependency;
-import manifold.ij.core.ManModule;
 import manifold.ij.core.ManProject;
 import manifold.ij.util.FP64;
 
@@ -42,20 +41,7 @@ public class ModuleClasspathListener implements ModuleRootListener
     {
       return;
     }
-//    boolean processDependencies = true;
-//
-//    if( processDependencies )
-//    {
-//      processModuleDependenciesChange( project );
-//    }
-//
-//    final Module[] modules = ModuleManager.getInstance( project ).getModules();
-//    for( Module ijModule : modules )
-//    {
-//      ManModule manModule = ManProject.getModule( ijModule );
-//      processClasspathChange( manModule, ijModule );
-//    }
-    resetProject( project );
+    updateProject( project );
   }
 
   private boolean shouldProcessRootChanges( Project project )
@@ -63,72 +49,53 @@ public class ModuleClasspathListener implements ModuleRootListener
     return ENABLED;
   }
 
-  private void processClasspathChange( ManModule manModule, Module ijModule )
+  /**
+   * Fingerprint everything a ManModule is derived from: source and excluded roots, output path and whether it exists,
+   * library classpath with the size and time stamp of each jar, and module dependencies with their export flags.
+   * Modules having the same fingerprint before and after a root change don't need to be rebuilt.
+   */
+  public static FP64 computeModuleFingerprint( Module ijModule )
   {
-    List<IDirectory> ijClasspath = manModule.getJavaClassPath();
-    List<IDirectory> ijSources = manModule.getSourcePath();
-    List<IDirectory> gosuClasspath = manModule.getJavaClassPath();
-    if( areDifferentIgnoringOrder( ijClasspath, gosuClasspath ) )
+    ModuleRootManager rootManager = ModuleRootManager.getInstance( ijModule );
+
+    List<String> roots = new ArrayList<>();
+    for( VirtualFile root : rootManager.getSourceRoots() )
     {
-      resetProject( manModule.getIjProject() );
+      roots.add( "src:" + root.getUrl() );
+    }
+    for( VirtualFile root : rootManager.getExcludeRoots() )
+    {
+      roots.add( "excl:" + root.getUrl() );
     }
-  }
-
 
-  private boolean areDifferentIgnoringOrder( List<IDirectory> list1, List<IDirectory> list2 )
-  {
-    if( list1.size() != list2.size() )
+    // classpath order matters
+    List<String> ordered = new ArrayList<>();
+    // the module has no output directory until the directory is created
+    String outputPath = CompilerPaths.getModuleOutputPath( ijModule, false );
+    ordered.add( "out:" + outputPath + (outputPath != null && new File( outputPath ).isDirectory() ? ":exists" : "") );
+    for( String path : ManProject.getDirectClassPaths( ijModule ) )
     {
-      return true;
+      // a jar replaced in place e.g., a rebuilt snapshot, may have different contents
+      File file = new File( path );
+      ordered.add( file.isFile() ? path + ':' + file.length() + ':' + file.lastModified() : path );
     }
-    List<IDirectory> list1copy = new ArrayList<>( list1 );
-    list1copy.removeAll( list2 );
-    return list1copy.size() != 0;
-  }
 
-//  private void processModuleDependenciesChange( Project project )
-//  {
-//    FP64 ijDependencyFingerprint = computeIJDependencyFingerprint( project );
-//    FP64 gosuDependencyFingerprint = computeGosuDependencyFingerprint( project );
-//    if( !ijDependencyFingerprint.equals( gosuDependencyFingerprint ) )
-//    {
-//      changeDependencies( project );
-//    }
-//  }
-
-  private FP64 computeGosuDependencyFingerprint( Project project )
-  {
-    List<String> strings = new ArrayList<>();
-    for( ManModule module: ManProject.manProjectFrom( project ).getModules() )
+    String s = ijModule.getName() + ARROW;
+    for( Module child : rootManager.getDependencies() )
     {
-      String s = module.getName() + ARROW;
-      for( Dependency dependency : module.getDependencies() )
-      {
-        ManModule child = (ManModule)dependency.getModule();
-        s += child.getName() + (dependency.isExported() ? EXPORT : NOT_EXPORT);
-      }
-      strings.add( s );
+      s += child.getName() + (ManProject.isExported( ijModule, child ) ? EXPORT : NOT_EXPORT);
     }
-    return computeOrderIndependentFingerprint( strings );
-  }
+    ordered.add( s );
 
-  private FP64 computeIJDependencyFingerprint( Project project )
-  {
-    List<String> strings = new ArrayList<>();
-    Module[] ijModules = ModuleManager.getInstance( project ).getModules();
-    for( Module ijModule : ijModules )
+    FP64 fp = computeOrderIndependentFingerprint( roots );
+    for( String path : ordered )
     {
-      String s = ijModule.getName() + ARROW;
-      for( Module child : ModuleRootManager.getInstance( ijModule ).getDependencies() )
-      {
-        s += child.getName() + (ManProject.isExported( ijModule, child ) ? EXPORT : NOT_EXPORT);
-      }
-      strings.add( s );
+      fp.extend( path );
     }
-    return computeOrderIndependentFingerprint( strings );
+    return fp;
   }
 
-  private FP64 computeOrderIndependentFingerprint( List<String> strings )
+  private static FP64 computeOrderIndependentFingerprint( List<String> strings )
   {
     Collections.sort( strings );
 
@@ -140,13 +107,13 @@ public class ModuleClasspathListener implements ModuleRootListener
     return fp;
   }
 
-  private void resetProject( Project project )
+  private void updateProject( Project project )
   {
     if( !project.isInitialized() )
     {
       return;
     }
 
-    ManProject.manProjectFrom( project ).reset();
+    ManProject.manProjectFrom( project ).update();
   }
 }
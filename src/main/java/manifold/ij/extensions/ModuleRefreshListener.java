@@ -16,22 +16,22 @@ public class ModuleRefreshListener implements ModuleListener
 {
   public void moduleAdded( Project project, Module ijModule )
   {
-    ManProject.manProjectFrom( project ).reset();
+    ManProject.manProjectFrom( project ).update();
   }
 
   public void beforeModuleRemoved( Project project, Module ijModule )
   {
-    ManProject.manProjectFrom( project ).reset();
+    // handled after the module is gone, see moduleRemoved()
   }
 
   public void moduleRemoved( Project project, Module module )
   {
-    ManProject.manProjectFrom( project ).reset();
+    ManProject.manProjectFrom( project ).update();
   }
 
   @Override
   public void modulesRenamed( Project project, List<Module> modules, Function<Module, String> moduleStringFunction )
   {
-    ManProject.manProjectFrom( project ).reset();
+    ManProject.manProjectFrom( project ).update();
   }
 }
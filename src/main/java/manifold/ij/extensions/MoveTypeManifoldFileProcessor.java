@@ -45,15 +45,14 @@ public class MoveTypeManifoldFileProcessor extends MoveFileHandler
   @Override
   public List<UsageInfo> findUsages( PsiFile psiFile, PsiDirectory newParent, boolean searchInComments, boolean searchInNonJavaFiles )
   {
-    Module mod = ModuleUtilCore.findModuleForPsiElement( psiFile );
-    ManModule module = ManProject.getModule( mod );
     PsiClass psiClass = findPsiClass( psiFile );
     if( psiClass == null )
     {
       return Collections.emptyList();
     }
 
-    Query<PsiReference> search = ReferencesSearch.search( psiClass, GlobalSearchScope.moduleWithDependenciesAndLibrariesScope( module.getIjModule() ) );
+    Module mod = ModuleUtilCore.findModuleForPsiElement( psiFile );
+    Query<PsiReference> search = ReferencesSearch.search( psiClass, GlobalSearchScope.moduleWithDependenciesAndLibrariesScope( mod ) );
     List<UsageInfo> usages = new ArrayList<>();
     for( PsiReference ref: search.findAll() )
     {
@@ -109,6 +108,10 @@ public class MoveTypeManifoldFileProcessor extends MoveFileHandler
     }
 
     ManModule module = ManProject.getModule( mod );
+    if( module == null )
+    {
+      return new String[0];
+    }
     return module.getTypesForFile( FileUtil.toIFile( module.getProject(), element.getVirtualFile() ) );
   }
 
@@ -122,6 +125,10 @@ public class MoveTypeManifoldFileProcessor extends MoveFileHandler
     }
 
     ManModule module = ManProject.getModule( mod );
+    if( module == null )
+    {
+      return null;
+    }
     String[] fqns = module.getTypesForFile( FileUtil.toIFile( module.getProject(), element.getVirtualFile() ) );
     PsiClass psiClass = null;
     for( String fqn: fqns )
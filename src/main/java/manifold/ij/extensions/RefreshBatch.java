@@ -0,0 +1,111 @@
+/*
+ * Manifold
+ */
+
+package manifold.ij.extensions;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import manifold.api.host.RefreshKind;
+import manifold.ij.fs.IjFile;
+
+/**
+ * An ordered set of pending file refreshes. Successive events for the same file
+ * are coalesced into a single refresh kind e.g., a creation followed by a few
+ * modifications is just a creation, a creation followed by a deletion is nothing.
+ */
+class RefreshBatch
+{
+  private final Map<String, Entry> _entries = new LinkedHashMap<>();
+
+  void add( IjFile file, RefreshKind kind )
+  {
+    String key = getKey( file );
+    Entry entry = _entries.get( key );
+    if( entry == null )
+    {
+      _entries.put( key, new Entry( file, kind ) );
+      return;
+    }
+
+    RefreshKind merged = merge( entry._kind, kind );
+    if( merged == null )
+    {
+      _entries.remove( key );
+    }
+    else
+    {
+      entry._file = file;
+      entry._kind = merged;
+    }
+  }
+
+  /**
+   * @return The kind of the refresh pending for {@code file}, or null if none was pending
+   */
+  RefreshKind remove( IjFile file )
+  {
+    Entry entry = _entries.remove( getKey( file ) );
+    return entry == null ? null : entry._kind;
+  }
+
+  int size()
+  {
+    return _entries.size();
+  }
+
+  boolean isEmpty()
+  {
+    return _entries.isEmpty();
+  }
+
+  void forEach( BiConsumer<IjFile, RefreshKind> consumer )
+  {
+    for( Entry entry : _entries.values() )
+    {
+      consumer.accept( entry._file, entry._kind );
+    }
+  }
+
+  private String getKey( IjFile file )
+  {
+    return file.getPath().getPathString();
+  }
+
+  /**
+   * @return The kind of refresh equivalent to {@code prior} followed by {@code next},
+   * or null if the two cancel out.
+   */
+  private static RefreshKind merge( RefreshKind prior, RefreshKind next )
+  {
+    switch( prior )
+    {
+      case CREATION:
+        // never seen, never gone
+        return next == RefreshKind.DELETION ? null : RefreshKind.CREATION;
+
+      case MODIFICATION:
+        return next == RefreshKind.DELETION ? RefreshKind.DELETION : RefreshKind.MODIFICATION;
+
+      case DELETION:
+        // deleted and recreated, listeners still know the file
+        return next == RefreshKind.DELETION ? RefreshKind.DELETION : RefreshKind.MODIFICATION;
+
+      default:
+        return next;
+    }
+  }
+
+  private static class Entry
+  {
+    private IjFile _file;
+    private RefreshKind _kind;
+
+    Entry( IjFile file, RefreshKind kind )
+    {
+      _file = file;
+      _kind = kind;
+    }
+  }
+}
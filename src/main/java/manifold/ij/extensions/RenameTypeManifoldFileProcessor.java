@@ -119,7 +119,9 @@ public class RenameTypeManifoldFileProcessor extends RenamePsiFileProcessor
             return;
           }
 
-          PsiClass psiClass = findPsiClass( (PsiFileSystemItem)element, ManProject.getModule( Objects.requireNonNull( ModuleUtilCore.findModuleForPsiElement( element ) ) ) );
+          // no module while the project is not ready, select the name before the extension instead
+          ManModule module = ManProject.getModule( Objects.requireNonNull( ModuleUtilCore.findModuleForPsiElement( element ) ) );
+          PsiClass psiClass = module == null ? null : findPsiClass( (PsiFileSystemItem)element, module );
           if( psiClass != null )
           {
             String className = psiClass.getName();
@@ -204,6 +206,10 @@ public class RenameTypeManifoldFileProcessor extends RenamePsiFileProcessor
     }
 
     ManModule module = ManProject.getModule( mod );
+    if( module == null )
+    {
+      return;
+    }
 
     PsiClass psiClass = findPsiClass( (PsiFileSystemItem)element, module );
     if( psiClass == null )
@@ -267,6 +273,11 @@ public class RenameTypeManifoldFileProcessor extends RenamePsiFileProcessor
         }
 
         ManModule module = ManProject.getModule( ijModule );
+        if( module == null )
+        {
+          return;
+        }
+
         PsiClass psiClass = findPsiClass( (PsiFileSystemItem)element, module );
         if( psiClass == null )
         {
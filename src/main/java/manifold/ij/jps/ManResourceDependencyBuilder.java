@@ -0,0 +1,464 @@
+/*
+ * Manifold
+ */
+
+package manifold.ij.jps;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.io.FileUtil;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.jps.ModuleChunk;
+import org.jetbrains.jps.builders.DirtyFilesHolder;
+import org.jetbrains.jps.builders.java.JavaBuilderUtil;
+import org.jetbrains.jps.builders.java.JavaSourceRootDescriptor;
+import org.jetbrains.jps.builders.storage.SourceToOutputMapping;
+import org.jetbrains.jps.incremental.BuilderCategory;
+import org.jetbrains.jps.incremental.CompileContext;
+import org.jetbrains.jps.incremental.FSOperations;
+import org.jetbrains.jps.incremental.ModuleBuildTarget;
+import org.jetbrains.jps.incremental.ModuleLevelBuilder;
+import org.jetbrains.jps.incremental.fs.CompilationRound;
+import org.jetbrains.jps.model.JpsElement;
+import org.jetbrains.jps.model.java.JavaResourceRootProperties;
+import org.jetbrains.jps.model.java.JavaSourceRootProperties;
+import org.jetbrains.jps.model.module.JpsModule;
+import org.jetbrains.jps.model.module.JpsModuleSourceRoot;
+import org.jetbrains.org.objectweb.asm.ClassReader;
+import org.jetbrains.org.objectweb.asm.ClassVisitor;
+import org.jetbrains.org.objectweb.asm.FieldVisitor;
+import org.jetbrains.org.objectweb.asm.MethodVisitor;
+import org.jetbrains.org.objectweb.asm.Opcodes;
+
+/**
+ * Keeps external builds of manifold projects incremental. Types produced from resource files such as JSON are compiled
+ * on demand by the Java sources using them, javac's dependency tracking does not know the resource files. This builder
+ * records which Java sources reference which manifold types, read from the class files they compile to, and when a
+ * resource file changes it marks exactly the Java sources using them dirty. The stale classes of the types are deleted
+ * in the IDE before the build starts, see ManStaleClassCleaner.
+ * <p/>
+ * A referenced type is attributed to a resource file when a non-Java file of the same name is in the type's package
+ * in a source or resource root, which is how resource type manifolds name their types. The package is relative to the
+ * root's package prefix, and as with manifold, file and directory names are made valid identifiers.
+ */
+public class ManResourceDependencyBuilder extends ModuleLevelBuilder
+{
+  private static final Logger LOG = Logger.getInstance( ManResourceDependencyBuilder.class );
+  private static final Key<BuildState> BUILD_STATE = Key.create( "MANIFOLD_RESOURCE_DEPENDENCIES" );
+  private static final String[] PLATFORM_PACKAGES = {"java/", "javax/", "jdk/", "sun/", "com/sun/"};
+
+  ManResourceDependencyBuilder()
+  {
+    super( BuilderCategory.SOURCE_PROCESSOR );
+  }
+
+  @NotNull
+  @Override
+  public String getPresentableName()
+  {
+    return "Manifold Resource Dependencies";
+  }
+
+  @NotNull
+  @Override
+  public List<String> getCompilableFileExtensions()
+  {
+    return Collections.emptyList();
+  }
+
+  @Override
+  public void buildStarted( CompileContext context )
+  {
+    File file = new File( context.getProjectDescriptor().dataManager.getDataPaths().getDataStorageRoot(), "manifold/resource-dependencies.dat" );
+    BuildState state = new BuildState( ResourceDependencyIndex.load( file ), findSourceRoots( context ) );
+    context.putUserData( BUILD_STATE, state );
+    if( JavaBuilderUtil.isForcedRecompilationAllJavaModules( context ) )
+    {
+      state._index.clear();
+      return;
+    }
+
+    for( ResourceDependencyIndex.Entry entry : state._index.takeChangedResources() )
+    {
+      for( String source : entry.getSources() )
+      {
+        try
+        {
+          FSOperations.markDirty( context, CompilationRound.CURRENT, new File( source ) );
+        }
+        catch( IOException e )
+        {
+          LOG.warn( "Manifold: failed to mark " + source + " dirty", e );
+        }
+      }
+    }
+  }
+
+  @Override
+  public ExitCode build( CompileContext context, ModuleChunk chunk,
+                         DirtyFilesHolder<JavaSourceRootDescriptor, ModuleBuildTarget> dirtyFilesHolder,
+                         OutputConsumer outputConsumer ) throws IOException
+  {
+    BuildState state = context.getUserData( BUILD_STATE );
+    if( state == null )
+    {
+      return ExitCode.NOTHING_DONE;
+    }
+
+    for( ModuleBuildTarget target : chunk.getTargets() )
+    {
+      for( String removed : dirtyFilesHolder.getRemovedFiles( target ) )
+      {
+        state._index.removeSource( removed );
+      }
+    }
+
+    dirtyFilesHolder.processDirtyFiles( ( target, file, root ) -> {
+      if( FileUtil.extensionEquals( file.getName(), "java" ) )
+      {
+        state._compiled.computeIfAbsent( target, k -> ConcurrentHashMap.newKeySet() ).add( file.getPath() );
+      }
+      return true;
+    } );
+    return ExitCode.NOTHING_DONE;
+  }
+
+  @Override
+  public void chunkBuildFinished( CompileContext context, ModuleChunk chunk )
+  {
+    BuildState state = context.getUserData( BUILD_STATE );
+    if( state == null )
+    {
+      return;
+    }
+
+    for( ModuleBuildTarget target : chunk.getTargets() )
+    {
+      Set<String> sources = state._compiled.remove( target );
+      if( sources == null )
+      {
+        continue;
+      }
+
+      try
+      {
+        SourceToOutputMapping mapping = context.getProjectDescriptor().dataManager.getSourceToOutputMap( target );
+        for( String source : sources )
+        {
+          Collection<String> outputs = mapping.getOutputs( source );
+          if( outputs == null )
+          {
+            // compilation failed, the source stays dirty and is recorded when it compiles
+            continue;
+          }
+          state._index.setDependencies( source, findResourceFiles( state, outputs ) );
+        }
+      }
+      catch( IOException e )
+      {
+        LOG.warn( "Manifold: failed to record resource dependencies of " + target.getPresentableName(), e );
+      }
+    }
+  }
+
+  @Override
+  public void buildFinished( CompileContext context )
+  {
+    BuildState state = context.getUserData( BUILD_STATE );
+    context.putUserData( BUILD_STATE, null );
+    if( state != null )
+    {
+      try
+      {
+        state._index.save();
+      }
+      catch( IOException e )
+      {
+        LOG.warn( "Manifold: failed to save resource dependencies", e );
+      }
+    }
+  }
+
+  private static List<SourceRoot> findSourceRoots( CompileContext context )
+  {
+    List<SourceRoot> roots = new ArrayList<>();
+    for( JpsModule module : context.getProjectDescriptor().getProject().getModules() )
+    {
+      for( JpsModuleSourceRoot root : module.getSourceRoots() )
+      {
+        roots.add( new SourceRoot( root ) );
+      }
+    }
+    return roots;
+  }
+
+  /**
+   * @return The resource files producing the manifold types the class files reference
+   */
+  private static Set<File> findResourceFiles( BuildState state, Collection<String> classFiles )
+  {
+    Set<File> resources = new HashSet<>();
+    for( String classFile : classFiles )
+    {
+      if( !FileUtil.extensionEquals( classFile, "class" ) )
+      {
+        continue;
+      }
+      for( String className : findReferencedClasses( new File( classFile ) ) )
+      {
+        int iDollar = className.indexOf( '$' );
+        resources.addAll( state.findResourceFiles( iDollar < 0 ? className : className.substring( 0, iDollar ) ) );
+      }
+    }
+    return resources;
+  }
+
+  /**
+   * @return The internal names of the classes the class file references from its constant pool and member descriptors
+   */
+  private static Set<String> findReferencedClasses( File classFile )
+  {
+    Set<String> classes = new HashSet<>();
+    ClassReader reader;
+    try
+    {
+      reader = new ClassReader( FileUtil.loadFileBytes( classFile ) );
+    }
+    catch( IOException e )
+    {
+      LOG.warn( e );
+      return classes;
+    }
+
+    char[] buf = new char[reader.getMaxStringLength()];
+    for( int i = 1; i < reader.getItemCount(); i++ )
+    {
+      int index = reader.getItem( i );
+      if( index == 0 )
+      {
+        // second slot of a long or double
+        continue;
+      }
+      switch( reader.b[index - 1] )
+      {
+        case 7: // CONSTANT_Class
+          String name = reader.readUTF8( index, buf );
+          if( name.startsWith( "[" ) )
+          {
+            addDescriptorClasses( name, classes );
+          }
+          else
+          {
+            classes.add( name );
+          }
+          break;
+        case 12: // CONSTANT_NameAndType
+          addDescriptorClasses( reader.readUTF8( index + 2, buf ), classes );
+          break;
+      }
+    }
+
+    reader.accept( new ClassVisitor( Opcodes.ASM5 )
+    {
+      @Override
+      public FieldVisitor visitField( int access, String name, String desc, String signature, Object value )
+      {
+        addDescriptorClasses( desc, classes );
+        return null;
+      }
+
+      @Override
+      public MethodVisitor visitMethod( int access, String name, String desc, String signature, String[] exceptions )
+      {
+        addDescriptorClasses( desc, classes );
+        return null;
+      }
+    }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES );
+
+    return classes;
+  }
+
+  private static void addDescriptorClasses( String desc, Set<String> classes )
+  {
+    int i = desc.indexOf( 'L' );
+    while( i >= 0 )
+    {
+      int end = desc.indexOf( ';', i );
+      if( end < 0 )
+      {
+        break;
+      }
+      classes.add( desc.substring( i + 1, end ) );
+      i = desc.indexOf( 'L', end );
+    }
+  }
+
+  private static class BuildState
+  {
+    private final ResourceDependencyIndex _index;
+    private final List<SourceRoot> _sourceRoots;
+    private final Map<ModuleBuildTarget, Set<String>> _compiled;
+    private final Map<String, Map<String, List<File>>> _resourcesByPackage;
+
+    BuildState( ResourceDependencyIndex index, List<SourceRoot> sourceRoots )
+    {
+      _index = index;
+      _sourceRoots = sourceRoots;
+      _compiled = new ConcurrentHashMap<>();
+      _resourcesByPackage = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @param className The internal name of a top-level class
+     * @return The resource files in the class's package named like the class
+     */
+    List<File> findResourceFiles( String className )
+    {
+      for( String platformPackage : PLATFORM_PACKAGES )
+      {
+        if( className.startsWith( platformPackage ) )
+        {
+          return Collections.emptyList();
+        }
+      }
+
+      int iSlash = className.lastIndexOf( '/' );
+      String pkg = iSlash < 0 ? "" : className.substring( 0, iSlash );
+      List<File> resources = _resourcesByPackage.computeIfAbsent( pkg, this::listResourceFiles )
+        .get( className.substring( iSlash + 1 ) );
+      return resources == null ? Collections.emptyList() : resources;
+    }
+
+    /**
+     * @return The non-Java files in the directories of package {@code pkg}, by the type name they produce
+     */
+    private Map<String, List<File>> listResourceFiles( String pkg )
+    {
+      List<String> segments = pkg.isEmpty() ? Collections.emptyList() : Arrays.asList( pkg.split( "/" ) );
+      Map<String, List<File>> byName = new HashMap<>();
+      for( SourceRoot root : _sourceRoots )
+      {
+        for( File dir : root.findPackageDirs( segments ) )
+        {
+          File[] files = dir.listFiles( File::isFile );
+          if( files == null )
+          {
+            continue;
+          }
+          for( File file : files )
+          {
+            String name = file.getName();
+            int iDot = name.lastIndexOf( '.' );
+            if( iDot <= 0 || FileUtil.extensionEquals( name, "java" ) || FileUtil.extensionEquals( name, "class" ) )
+            {
+              continue;
+            }
+            byName.computeIfAbsent( makeIdentifier( name.substring( 0, iDot ) ), k -> new ArrayList<>() ).add( file );
+          }
+        }
+      }
+      return byName;
+    }
+  }
+
+  /**
+   * A source or resource root and the package its directory corresponds with
+   */
+  private static class SourceRoot
+  {
+    private final File _dir;
+    private final List<String> _prefix;
+
+    SourceRoot( JpsModuleSourceRoot root )
+    {
+      _dir = root.getFile();
+      JpsElement properties = root.getProperties();
+      String prefix = "";
+      if( properties instanceof JavaSourceRootProperties )
+      {
+        prefix = ((JavaSourceRootProperties)properties).getPackagePrefix().replace( '.', '/' );
+      }
+      else if( properties instanceof JavaResourceRootProperties )
+      {
+        // resources are found on the classpath where they are copied to
+        prefix = ((JavaResourceRootProperties)properties).getRelativeOutputPath();
+      }
+      _prefix = new ArrayList<>();
+      for( String segment : prefix.split( "/" ) )
+      {
+        if( !segment.isEmpty() )
+        {
+          _prefix.add( segment );
+        }
+      }
+    }
+
+    /**
+     * @param segments The segments of a package name
+     * @return The directories under this root whose path relative to the root's package names the package
+     */
+    List<File> findPackageDirs( List<String> segments )
+    {
+      if( segments.size() < _prefix.size() || !segments.subList( 0, _prefix.size() ).equals( _prefix ) )
+      {
+        return Collections.emptyList();
+      }
+
+      List<File> dirs = Collections.singletonList( _dir );
+      for( String segment : segments.subList( _prefix.size(), segments.size() ) )
+      {
+        List<File> children = new ArrayList<>( 1 );
+        for( File dir : dirs )
+        {
+          File[] matches = dir.listFiles( child -> child.isDirectory() && makeIdentifier( child.getName() ).equals( segment ) );
+          if( matches != null )
+          {
+            children.addAll( Arrays.asList( matches ) );
+          }
+        }
+        if( children.isEmpty() )
+        {
+          return children;
+        }
+        dirs = children;
+      }
+      return dirs;
+    }
+  }
+
+  /**
+   * The identifier manifold makes of a file or directory name, characters not valid in a Java identifier are
+   * replaced with '_'
+   */
+  private static String makeIdentifier( String name )
+  {
+    if( name.isEmpty() )
+    {
+      return "_";
+    }
+
+    StringBuilder sb = new StringBuilder( name.length() + 1 );
+    if( !Character.isJavaIdentifierStart( name.charAt( 0 ) ) )
+    {
+      sb.append( '_' );
+    }
+    for( int i = 0; i < name.length(); i++ )
+    {
+      char c = name.charAt( i );
+      sb.append( Character.isJavaIdentifierPart( c ) ? c : '_' );
+    }
+    return sb.toString();
+  }
+}
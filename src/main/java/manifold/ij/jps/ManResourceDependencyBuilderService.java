@@ -0,0 +1,24 @@
+/*
+ * Manifold
+ */
+
+package manifold.ij.jps;
+
+import java.util.Collections;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.jps.incremental.BuilderService;
+import org.jetbrains.jps.incremental.ModuleLevelBuilder;
+
+/**
+ * Contributes manifold's builders to the external build process, see the compileServer.plugin entry in plugin.xml
+ */
+public class ManResourceDependencyBuilderService extends BuilderService
+{
+  @NotNull
+  @Override
+  public List<? extends ModuleLevelBuilder> createModuleLevelBuilders()
+  {
+    return Collections.singletonList( new ManResourceDependencyBuilder() );
+  }
+}
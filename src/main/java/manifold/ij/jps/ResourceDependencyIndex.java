@@ -0,0 +1,249 @@
+/*
+ * Manifold
+ */
+
+package manifold.ij.jps;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maps manifold resource files to the Java sources using the types produced from them, persisted with the build's
+ * data. Each resource keeps the time stamp it had when its dependencies were recorded.
+ */
+class ResourceDependencyIndex
+{
+  private static final int VERSION = 2;
+
+  private final File _file;
+  private final Map<String, Entry> _byResource;
+  private final Map<String, Set<String>> _bySource;
+  private boolean _dirty;
+
+  private ResourceDependencyIndex( File file )
+  {
+    _file = file;
+    _byResource = new HashMap<>();
+    _bySource = new HashMap<>();
+  }
+
+  /**
+   * @return The index persisted in {@code file}, an empty index if there is none or it can't be read
+   */
+  static ResourceDependencyIndex load( File file )
+  {
+    ResourceDependencyIndex index = new ResourceDependencyIndex( file );
+    if( !file.isFile() )
+    {
+      return index;
+    }
+
+    try( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) )
+    {
+      if( in.readInt() != VERSION )
+      {
+        return index;
+      }
+      int count = in.readInt();
+      for( int i = 0; i < count; i++ )
+      {
+        Entry entry = new Entry( in.readUTF(), in.readLong() );
+        readStrings( in, entry._sources );
+        index._byResource.put( entry._resource, entry );
+        for( String source : entry._sources )
+        {
+          index._bySource.computeIfAbsent( source, k -> new HashSet<>() ).add( entry._resource );
+        }
+      }
+    }
+    catch( IOException e )
+    {
+      // sources are recorded again as they compile
+      index._byResource.clear();
+      index._bySource.clear();
+    }
+    return index;
+  }
+
+  synchronized void save() throws IOException
+  {
+    if( !_dirty )
+    {
+      return;
+    }
+
+    //noinspection ResultOfMethodCallIgnored
+    _file.getParentFile().mkdirs();
+    try( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( _file ) ) ) )
+    {
+      out.writeInt( VERSION );
+      out.writeInt( _byResource.size() );
+      for( Entry entry : _byResource.values() )
+      {
+        out.writeUTF( entry._resource );
+        out.writeLong( entry._stamp );
+        writeStrings( out, entry._sources );
+      }
+    }
+    _dirty = false;
+  }
+
+  /**
+   * Find the resources changed or deleted since their dependencies were recorded. Their stamps are brought up to date,
+   * deleted resources are dropped from the index.
+   */
+  synchronized List<Entry> takeChangedResources()
+  {
+    List<Entry> changed = new ArrayList<>();
+    for( Entry entry : new ArrayList<>( _byResource.values() ) )
+    {
+      File resource = new File( entry._resource );
+      long stamp = resource.lastModified();
+      if( stamp != entry._stamp )
+      {
+        changed.add( entry.copy() );
+        if( stamp == 0 )
+        {
+          removeResource( entry );
+        }
+        else
+        {
+          entry._stamp = stamp;
+        }
+        _dirty = true;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Replace the recorded dependencies of {@code source}
+   *
+   * @param resourceFiles The manifold resources producing the types {@code source} references
+   */
+  synchronized void setDependencies( String source, Set<File> resourceFiles )
+  {
+    removeSource( source );
+    if( resourceFiles.isEmpty() )
+    {
+      return;
+    }
+
+    Set<String> resources = new HashSet<>();
+    for( File resourceFile : resourceFiles )
+    {
+      String path = resourceFile.getPath();
+      _byResource.computeIfAbsent( path, k -> new Entry( k, resourceFile.lastModified() ) )._sources.add( source );
+      resources.add( path );
+    }
+    _bySource.put( source, resources );
+    _dirty = true;
+  }
+
+  synchronized void removeSource( String source )
+  {
+    Set<String> resources = _bySource.remove( source );
+    if( resources == null )
+    {
+      return;
+    }
+
+    for( String resource : resources )
+    {
+      Entry entry = _byResource.get( resource );
+      if( entry != null )
+      {
+        entry._sources.remove( source );
+        if( entry._sources.isEmpty() )
+        {
+          _byResource.remove( resource );
+        }
+      }
+    }
+    _dirty = true;
+  }
+
+  synchronized void clear()
+  {
+    _byResource.clear();
+    _bySource.clear();
+    _dirty = true;
+  }
+
+  private void removeResource( Entry entry )
+  {
+    _byResource.remove( entry._resource );
+    for( String source : entry._sources )
+    {
+      Set<String> resources = _bySource.get( source );
+      if( resources != null )
+      {
+        resources.remove( entry._resource );
+        if( resources.isEmpty() )
+        {
+          _bySource.remove( source );
+        }
+      }
+    }
+  }
+
+  private static void readStrings( DataInputStream in, Set<String> strings ) throws IOException
+  {
+    int count = in.readInt();
+    for( int i = 0; i < count; i++ )
+    {
+      strings.add( in.readUTF() );
+    }
+  }
+
+  private static void writeStrings( DataOutputStream out, Set<String> strings ) throws IOException
+  {
+    out.writeInt( strings.size() );
+    for( String s : strings )
+    {
+      out.writeUTF( s );
+    }
+  }
+
+  static class Entry
+  {
+    private final String _resource;
+    private long _stamp;
+    private final Set<String> _sources;
+
+    private Entry( String resource, long stamp )
+    {
+      _resource = resource;
+      _stamp = stamp;
+      _sources = new HashSet<>();
+    }
+
+    private Entry copy()
+    {
+      Entry copy = new Entry( _resource, _stamp );
+      copy._sources.addAll( _sources );
+      return copy;
+    }
+
+    /**
+     * @return The Java sources using types produced from the resource
+     */
+    Set<String> getSources()
+    {
+      return Collections.unmodifiableSet( _sources );
+    }
+  }
+}
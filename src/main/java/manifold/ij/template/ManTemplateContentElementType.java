@@ -0,0 +1,37 @@
+package manifold.ij.template;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.lang.Language;
+import com.intellij.psi.impl.source.tree.SharedImplUtil;
+import com.intellij.psi.templateLanguages.TemplateDataElementType;
+import com.intellij.psi.templateLanguages.TemplateLanguageFileViewProvider;
+import com.intellij.psi.tree.TokenSet;
+
+
+import static manifold.ij.template.psi.ManTemplateTokenType.CONTENT;
+import static manifold.ij.template.psi.ManTemplateTokenType.STMT;
+
+/**
+ * The template data element type of the content language root, e.g. HTML. Edits confined to code blocks leave the
+ * content unchanged, the previous tree is reused for those.
+ *
+ * @see ManTemplateTreeReuse
+ */
+public class ManTemplateContentElementType extends TemplateDataElementType
+{
+  private static final TokenSet CONTENT_TOKENS = TokenSet.create( CONTENT );
+
+  ManTemplateContentElementType( String name, Language lang )
+  {
+    super( name, lang, CONTENT, STMT );
+  }
+
+  @Override
+  public ASTNode parseContents( ASTNode chameleon )
+  {
+    TemplateLanguageFileViewProvider viewProvider = (TemplateLanguageFileViewProvider)SharedImplUtil.getContainingFile( chameleon ).getViewProvider();
+    ASTNode reused = ManTemplateTreeReuse.reuseTree( chameleon, createBaseLexer( viewProvider ), createBaseLexer( viewProvider ),
+                                                     CONTENT_TOKENS, STMT );
+    return reused != null ? reused : super.parseContents( chameleon );
+  }
+}
@@ -1,19 +1,22 @@
 package manifold.ij.template;
 
+import com.intellij.lang.ASTNode;
 import com.intellij.lang.Language;
 import com.intellij.lexer.Lexer;
 import com.intellij.openapi.util.Key;
 import com.intellij.openapi.util.TextRange;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.psi.PsiFile;
+import com.intellij.psi.impl.source.tree.SharedImplUtil;
 import com.intellij.psi.templateLanguages.TemplateDataElementType;
 import com.intellij.psi.templateLanguages.TemplateLanguageFileViewProvider;
 import com.intellij.psi.tree.IElementType;
-import java.util.ArrayList;
-import java.util.List;
+import com.intellij.psi.tree.TokenSet;
+import java.util.Arrays;
 import org.jetbrains.annotations.NotNull;
 
 
+import static manifold.ij.template.psi.ManTemplateTokenType.CONTENT;
 import static manifold.ij.template.psi.ManTemplateTokenType.EXPR;
 import static manifold.ij.template.psi.ManTemplateTokenType.STMT;
 import static manifold.ij.template.psi.ManTemplateTokenType.DIRECTIVE;
@@ -26,19 +29,39 @@ import static manifold.ij.template.psi.ManTemplateTokenType.DIRECTIVE;
  */
 public class ManTemplateDataElementType extends TemplateDataElementType
 {
-  public static final Key<List<Integer>> EXPR_OFFSETS = Key.create( "EXPR_OFFSETS" );
-  public static final Key<List<Integer>> STMT_OFFSETS = Key.create( "STMT_OFFSETS" );
-  public static final Key<List<Integer>> DIRECTIVE_OFFSETS = Key.create( "DIRECTIVE_OFFSETS" );
+  /**
+   * The offsets of the expressions, statements and directives in the template text. Each entry is
+   * {@code offset << KIND_BITS | kind}, the array is sorted.
+   */
+  public static final Key<int[]> CODE_OFFSETS = Key.create( "CODE_OFFSETS" );
+  public static final int EXPR_KIND = 0;
+  public static final int STMT_KIND = 1;
+  public static final int DIRECTIVE_KIND = 2;
+  private static final int KIND_BITS = 2;
+  private static final int[] NO_OFFSETS = new int[0];
+  private static final TokenSet JAVA_TOKENS = TokenSet.create( STMT, EXPR, DIRECTIVE );
 
   ManTemplateDataElementType( String name, Language lang, IElementType contentElementType )
   {
     super( name, lang, STMT, contentElementType );
   }
 
+  /**
+   * The template text alone, without the code offsets {@link #createTemplateFile} also keeps
+   */
   @Override
   protected CharSequence createTemplateText( @NotNull CharSequence sourceCode, @NotNull Lexer baseLexer, @NotNull RangesCollector outerRangesCollector )
   {
-    throw new IllegalStateException( "Should be calling private createTemplateText overload instead" );
+    return new TemplateTextBuilder( sourceCode ).build( baseLexer, outerRangesCollector );
+  }
+
+  @Override
+  public ASTNode parseContents( ASTNode chameleon )
+  {
+    TemplateLanguageFileViewProvider viewProvider = (TemplateLanguageFileViewProvider)SharedImplUtil.getContainingFile( chameleon ).getViewProvider();
+    ASTNode reused = ManTemplateTreeReuse.reuseTree( chameleon, createBaseLexer( viewProvider ), createBaseLexer( viewProvider ),
+                                                     JAVA_TOKENS, CONTENT );
+    return reused != null ? reused : super.parseContents( chameleon );
   }
 
   @Override
@@ -47,59 +70,35 @@ public class ManTemplateDataElementType extends TemplateDataElementType
     return ManTemplateJavaLanguage.INSTANCE;
   }
 
-  private CharSequence createTemplateText( @NotNull CharSequence sourceCode,
-                                           @NotNull Lexer baseLexer,
-                                           @NotNull RangesCollector outerRangesCollector,
-                                           List<Integer> expressionOffsets,
-                                           List<Integer> statementOffsets,
-                                           List<Integer> directiveOffsets )
+  /**
+   * @return True if an expression, statement or directive, according to {@code kind}, starts at {@code offset}
+   */
+  public static boolean isCodeOffset( int[] codeOffsets, int offset, int kind )
   {
-    StringBuilder result = new StringBuilder( sourceCode.length() );
-    baseLexer.start( sourceCode );
+    return codeOffsets != null && Arrays.binarySearch( codeOffsets, offset << KIND_BITS | kind ) >= 0;
+  }
 
-    TextRange currentRange = TextRange.EMPTY_RANGE;
-    while( baseLexer.getTokenType() != null )
+  /**
+   * @return The distinct offsets of {@code codeOffsets}, sorted
+   */
+  public static int[] getBoundaries( int[] codeOffsets )
+  {
+    if( codeOffsets == null )
     {
-      TextRange newRange = TextRange.create( baseLexer.getTokenStart(), baseLexer.getTokenEnd() );
-      assert currentRange.getEndOffset() == newRange.getStartOffset() :
-        "Inconsistent tokens stream from " + baseLexer +
-        ": " + getRangeDump( currentRange, sourceCode ) + " followed by " + getRangeDump( newRange, sourceCode );
-      currentRange = newRange;
-      IElementType tokenType = baseLexer.getTokenType();
-      if( tokenType == STMT || tokenType == EXPR || tokenType == DIRECTIVE )
-      {
-        int offset = result.length();
-        appendCurrentTemplateToken( result, sourceCode, baseLexer );
-        if( tokenType == EXPR )
-        {
-          expressionOffsets.add( offsetNoWhitespace( result, offset ) );
-        }
-        else if( tokenType == STMT )
-        {
-          statementOffsets.add( offsetNoWhitespace( result, offset ) );
-        }
-        else // DIRECTIVE
-        {
-          directiveOffsets.add( offsetNoWhitespace( result, offset ) );
-        }
-      }
-      else
-      {
-        outerRangesCollector.addRange( currentRange );
-      }
-      baseLexer.advance();
+      return NO_OFFSETS;
     }
 
-    return result;
-  }
-
-  private Integer offsetNoWhitespace( StringBuilder result, int offset )
-  {
-    while( result.length() > offset && Character.isWhitespace( result.charAt( offset ) ) )
+    int[] boundaries = new int[codeOffsets.length];
+    int count = 0;
+    for( int entry : codeOffsets )
     {
-      offset++;
+      int offset = entry >>> KIND_BITS;
+      if( count == 0 || boundaries[count - 1] != offset )
+      {
+        boundaries[count++] = offset;
+      }
     }
-    return offset;
+    return count == boundaries.length ? boundaries : Arrays.copyOf( boundaries, count );
   }
 
   protected PsiFile createTemplateFile( final PsiFile psiFile,
@@ -108,14 +107,10 @@ public class ManTemplateDataElementType extends TemplateDataElementType
                                         final TemplateLanguageFileViewProvider viewProvider,
                                         @NotNull RangesCollector outerRangesCollector )
   {
-    List<Integer> expressionOffsets = new ArrayList<>();
-    List<Integer> statementOffsets = new ArrayList<>();
-    List<Integer> directiveOffsets = new ArrayList<>();
-    CharSequence templateSourceCode = createTemplateText( sourceCode, createBaseLexer( viewProvider ), outerRangesCollector, expressionOffsets, statementOffsets, directiveOffsets );
+    TemplateTextBuilder builder = new TemplateTextBuilder( sourceCode );
+    CharSequence templateSourceCode = builder.build( createBaseLexer( viewProvider ), outerRangesCollector );
     PsiFile file = createPsiFileFromSource( templateLanguage, templateSourceCode, psiFile.getManager() );
-    file.putUserData( EXPR_OFFSETS, expressionOffsets );
-    file.putUserData( STMT_OFFSETS, statementOffsets );
-    file.putUserData( DIRECTIVE_OFFSETS, directiveOffsets );
+    file.putUserData( CODE_OFFSETS, builder.getCodeOffsets() );
     return file;
   }
 
@@ -125,4 +120,75 @@ public class ManTemplateDataElementType extends TemplateDataElementType
     return "'" + StringUtil.escapeLineBreak( range.subSequence( sequence ).toString() ) + "' " + range;
   }
 
+  /**
+   * Builds the template text and the code offsets in one pass over the tokens
+   */
+  private static class TemplateTextBuilder
+  {
+    private final CharSequence _sourceCode;
+    private final StringBuilder _text;
+    private int[] _codeOffsets;
+    private int _count;
+
+    TemplateTextBuilder( CharSequence sourceCode )
+    {
+      _sourceCode = sourceCode;
+      _text = new StringBuilder( sourceCode.length() );
+      _codeOffsets = new int[16];
+    }
+
+    CharSequence build( Lexer baseLexer, RangesCollector outerRangesCollector )
+    {
+      baseLexer.start( _sourceCode );
+      int prevStart = 0;
+      int prevEnd = 0;
+      IElementType tokenType;
+      while( (tokenType = baseLexer.getTokenType()) != null )
+      {
+        int tokenStart = baseLexer.getTokenStart();
+        int tokenEnd = baseLexer.getTokenEnd();
+        assert prevEnd == tokenStart :
+          "Inconsistent tokens stream from " + baseLexer +
+          ": " + getRangeDump( new TextRange( prevStart, prevEnd ), _sourceCode ) + " followed by " + getRangeDump( new TextRange( tokenStart, tokenEnd ), _sourceCode );
+        prevStart = tokenStart;
+        prevEnd = tokenEnd;
+
+        if( tokenType == STMT || tokenType == EXPR || tokenType == DIRECTIVE )
+        {
+          // the offset of the code skips leading whitespace
+          int codeStart = tokenStart;
+          while( codeStart < tokenEnd && Character.isWhitespace( _sourceCode.charAt( codeStart ) ) )
+          {
+            codeStart++;
+          }
+          int kind = tokenType == EXPR ? EXPR_KIND : tokenType == STMT ? STMT_KIND : DIRECTIVE_KIND;
+          addCodeOffset( _text.length() + codeStart - tokenStart, kind );
+          _text.append( _sourceCode, tokenStart, tokenEnd );
+        }
+        else
+        {
+          outerRangesCollector.addRange( new TextRange( tokenStart, tokenEnd ) );
+        }
+        baseLexer.advance();
+      }
+      return _text;
+    }
+
+    private void addCodeOffset( int offset, int kind )
+    {
+      if( _count == _codeOffsets.length )
+      {
+        _codeOffsets = Arrays.copyOf( _codeOffsets, _count * 2 );
+      }
+      _codeOffsets[_count++] = offset << KIND_BITS | kind;
+    }
+
+    int[] getCodeOffsets()
+    {
+      int[] codeOffsets = Arrays.copyOf( _codeOffsets, _count );
+      // a whitespace-only block shares its offset with the next one, their kinds may be out of order
+      Arrays.sort( codeOffsets );
+      return codeOffsets;
+    }
+  }
 }
@@ -22,7 +22,6 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 import org.jetbrains.annotations.NotNull;
 import static manifold.ij.template.psi.ManTemplateTokenType.CONTENT;
-import static manifold.ij.template.psi.ManTemplateTokenType.STMT;
 
 public class ManTemplateFileViewProvider extends MultiplePsiFilesPerDocumentFileViewProvider
   implements TemplateLanguageFileViewProvider
@@ -41,7 +40,7 @@ public class ManTemplateFileViewProvider extends MultiplePsiFilesPerDocumentFile
     {
       return result;
     }
-    TemplateDataElementType created = new TemplateDataElementType( "ManTL_DATA", lang, CONTENT, STMT );
+    TemplateDataElementType created = new ManTemplateContentElementType( "ManTL_DATA", lang );
     TemplateDataElementType prevValue = TEMPLATE_DATA_TO_LANG.putIfAbsent( lang.getID(), created );
 
     return prevValue == null ? created : prevValue;
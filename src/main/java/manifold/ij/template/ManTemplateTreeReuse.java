@@ -0,0 +1,175 @@
+package manifold.ij.template;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.lexer.Lexer;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.impl.source.PsiFileImpl;
+import com.intellij.psi.impl.source.tree.FileElement;
+import com.intellij.psi.impl.source.tree.LazyParseableElement;
+import com.intellij.psi.impl.source.tree.TreeElement;
+import com.intellij.psi.impl.source.tree.TreeUtil;
+import com.intellij.psi.templateLanguages.OuterLanguageElement;
+import com.intellij.psi.templateLanguages.OuterLanguageElementImpl;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.TokenSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
+
+/**
+ * Incremental reparse for the Java and content roots of a template. The platform always reparses a template data root
+ * in full, however most edits are confined to a content region or to a single code block and leave one of the roots'
+ * template text unchanged. For that root the previous tree is reused: it is copied and its outer elements take the
+ * new text. The root is not parsed again, and the tree diff against the committed tree reports only the outer elements.
+ * <p/>
+ * The tree diff keeps unchanged nodes either way, the number of reused trees per root tells tests the reuse happened.
+ */
+final class ManTemplateTreeReuse
+{
+  private static final Map<IElementType, Integer> REUSE_COUNTS = new ConcurrentHashMap<>();
+
+  private ManTemplateTreeReuse()
+  {
+  }
+
+  /**
+   * @param oldLexer A base lexer for the committed text
+   * @param newLexer A base lexer for the text to parse
+   * @param templateTokens The tokens forming the root's template text
+   * @param outerElementType The type of the root's outer elements
+   *
+   * @return The children of the copied tree, or null if the root's template text or structure changed
+   */
+  @Nullable
+  static ASTNode reuseTree( ASTNode chameleon, Lexer oldLexer, Lexer newLexer, TokenSet templateTokens, IElementType outerElementType )
+  {
+    FileElement fileElement = TreeUtil.getFileElement( (TreeElement)chameleon );
+    if( fileElement != chameleon )
+    {
+      return null;
+    }
+
+    // the file being parsed is a copy made for the reparse, the original has the committed tree
+    PsiFile psiFile = (PsiFile)fileElement.getPsi();
+    PsiFile originalFile = psiFile.getOriginalFile();
+    if( originalFile == psiFile || !(originalFile instanceof PsiFileImpl) )
+    {
+      return null;
+    }
+    FileElement oldTree = ((PsiFileImpl)originalFile).getTreeElement();
+    if( oldTree == null || !oldTree.isParsed() || oldTree.getElementType() != chameleon.getElementType() )
+    {
+      return null;
+    }
+
+    List<CharSequence> outerTexts = matchTemplateTokens( oldLexer, oldTree.getChars(), newLexer, chameleon.getChars(), templateTokens );
+    if( outerTexts == null )
+    {
+      return null;
+    }
+
+    FileElement copy = (FileElement)oldTree.clone();
+    List<TreeElement> outers = new ArrayList<>( outerTexts.size() );
+    collectOuterElements( copy, outers );
+    if( outers.size() != outerTexts.size() )
+    {
+      return null;
+    }
+    for( int i = 0; i < outers.size(); i++ )
+    {
+      TreeElement outer = outers.get( i );
+      CharSequence text = outerTexts.get( i );
+      if( !StringUtil.equals( outer.getChars(), text ) )
+      {
+        outer.rawReplaceWithList( new OuterLanguageElementImpl( outerElementType, text ) );
+      }
+    }
+    REUSE_COUNTS.merge( outerElementType, 1, Integer::sum );
+    return copy.getFirstChildNode();
+  }
+
+  /**
+   * @param outerElementType The type of the root's outer elements, identifies the Java or content root
+   *
+   * @return The number of times the root's tree was reused
+   */
+  @TestOnly
+  static int getReuseCount( IElementType outerElementType )
+  {
+    return REUSE_COUNTS.getOrDefault( outerElementType, 0 );
+  }
+
+  /**
+   * @return The new text of the outer ranges if both texts have the same tokens and the same template tokens' text,
+   * otherwise null
+   */
+  @Nullable
+  private static List<CharSequence> matchTemplateTokens( Lexer oldLexer, CharSequence oldText,
+                                                         Lexer newLexer, CharSequence newText,
+                                                         TokenSet templateTokens )
+  {
+    List<CharSequence> outerTexts = new ArrayList<>();
+    int outerStart = -1;
+    oldLexer.start( oldText );
+    newLexer.start( newText );
+    while( true )
+    {
+      IElementType tokenType = newLexer.getTokenType();
+      if( tokenType != oldLexer.getTokenType() )
+      {
+        return null;
+      }
+      if( tokenType == null )
+      {
+        break;
+      }
+
+      if( templateTokens.contains( tokenType ) )
+      {
+        if( !StringUtil.equals( oldText.subSequence( oldLexer.getTokenStart(), oldLexer.getTokenEnd() ),
+                                newText.subSequence( newLexer.getTokenStart(), newLexer.getTokenEnd() ) ) )
+        {
+          return null;
+        }
+        if( outerStart >= 0 )
+        {
+          outerTexts.add( newText.subSequence( outerStart, newLexer.getTokenStart() ) );
+          outerStart = -1;
+        }
+      }
+      else if( outerStart < 0 )
+      {
+        outerStart = newLexer.getTokenStart();
+      }
+      oldLexer.advance();
+      newLexer.advance();
+    }
+    if( outerStart >= 0 )
+    {
+      outerTexts.add( newText.subSequence( outerStart, newText.length() ) );
+    }
+    return outerTexts;
+  }
+
+  private static void collectOuterElements( TreeElement element, List<TreeElement> outers )
+  {
+    if( element instanceof OuterLanguageElement )
+    {
+      outers.add( element );
+      return;
+    }
+    if( element instanceof LazyParseableElement && !((LazyParseableElement)element).isParsed() )
+    {
+      // outer elements are inserted after parsing, a collapsed element has none
+      return;
+    }
+    for( TreeElement child = element.getFirstChildNode(); child != null; child = child.getTreeNext() )
+    {
+      collectOuterElements( child, outers );
+    }
+  }
+}
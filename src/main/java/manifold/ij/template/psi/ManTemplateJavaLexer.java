@@ -3,14 +3,14 @@ package manifold.ij.template.psi;
 import com.intellij.lang.ASTNode;
 import com.intellij.lang.java.lexer.JavaLexer;
 import com.intellij.lexer.DelegateLexer;
+import com.intellij.lexer.Lexer;
+import com.intellij.lexer.LexerPosition;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.LanguageLevelProjectExtension;
 import com.intellij.pom.java.LanguageLevel;
 import com.intellij.psi.impl.source.tree.SharedImplUtil;
-import java.util.Collections;
-import java.util.List;
 import manifold.ij.template.ManTemplateDataElementType;
-import manifold.util.ReflectUtil;
+import org.jetbrains.annotations.NotNull;
 
 /**
  * The Java produced from a ManTL template file consists of a series of directives, expressions, and statements
@@ -29,9 +29,10 @@ import manifold.util.ReflectUtil;
  */
 class ManTemplateJavaLexer extends DelegateLexer
 {
-  private List<Integer> _exprOffsets;
-  private List<Integer> _stmtOffsets;
-  private List<Integer> _directiveOffsets;
+  private static final int[] NO_OFFSETS = new int[0];
+
+  private int[] _boundaries;
+  private int _bufferEnd;
 
   ManTemplateJavaLexer( Project project, ASTNode chameleon )
   {
@@ -42,81 +43,80 @@ class ManTemplateJavaLexer extends DelegateLexer
 
   }
 
-  private JavaLexer getJavaLexerDelegate()
-  {
-    return (JavaLexer)getDelegate();
-  }
-
   private void assignOffsets( ASTNode chameleon )
   {
     if( chameleon == null )
     {
-      _exprOffsets = Collections.emptyList();
-      _stmtOffsets = Collections.emptyList();
-      _directiveOffsets = Collections.emptyList();
+      _boundaries = NO_OFFSETS;
       return;
     }
 
     ManTemplateJavaFile psiFile = (ManTemplateJavaFile)SharedImplUtil.getContainingFile( chameleon );
-    _exprOffsets = psiFile.getUserData( ManTemplateDataElementType.EXPR_OFFSETS );
-    _stmtOffsets = psiFile.getUserData( ManTemplateDataElementType.STMT_OFFSETS );
-    _directiveOffsets = psiFile.getUserData( ManTemplateDataElementType.DIRECTIVE_OFFSETS );
+    _boundaries = ManTemplateDataElementType.getBoundaries( psiFile.getUserData( ManTemplateDataElementType.CODE_OFFSETS ) );
   }
 
+  /**
+   * The delegate lexes one Java component at a time, it is started on the range between two boundaries and restarted
+   * on the next range when it reaches the end of the current one. A token can't straddle a boundary.
+   */
   @Override
-  public void advance()
+  public void start( @NotNull CharSequence buffer, int startOffset, int endOffset, int initialState )
   {
-    updateCodeBoundary();
-    super.advance();
+    _bufferEnd = endOffset;
+    startSegment( buffer, startOffset, initialState );
   }
 
-  private void updateCodeBoundary()
+  @Override
+  public void advance()
   {
-    JavaLexer delegate = getJavaLexerDelegate();
-    int pos = delegate.getTokenEnd();
-    int next = findNextOffset( pos, getDelegate().getBufferEnd(), _exprOffsets, _stmtOffsets, _directiveOffsets );
-    if( next > 0 )
+    super.advance();
+    Lexer delegate = getDelegate();
+    if( delegate.getTokenType() == null && delegate.getBufferEnd() < _bufferEnd )
     {
-      ReflectUtil.field( ReflectUtil.field( getJavaLexerDelegate(), "myFlexLexer" ).get(), "zzEndRead" ).set( next );
+      startSegment( delegate.getBufferSequence(), delegate.getBufferEnd(), delegate.getState() );
     }
   }
 
-  @SafeVarargs
-  public static int findNextOffset( int pos, int end, List<Integer>... lists )
+  @Override
+  public int getBufferEnd()
   {
-    int next = findNextOffset( lists[0], pos, end );
-    for( int i = 1; i < lists.length; i++ )
-    {
-      int temp = findNextOffset( lists[i], pos, end );
-      next = better( next, temp );
-    }
-    return next;
+    return _bufferEnd;
   }
 
-  private static int better( int next, int temp )
+  @Override
+  public void restore( @NotNull LexerPosition position )
   {
-    if( next < 0 || temp > 0 && temp < next )
-    {
-      next = temp;
-    }
-    return next;
+    start( getBufferSequence(), position.getOffset(), _bufferEnd, position.getState() );
   }
 
-  private static int findNextOffset( List<Integer> list, int pos, int end )
+  private void startSegment( CharSequence buffer, int startOffset, int initialState )
   {
-    if( list.isEmpty() )
+    Lexer delegate = getDelegate();
+    int segmentEnd = startOffset;
+    while( true )
     {
-      return -1;
+      segmentEnd = findNextOffset( segmentEnd, _bufferEnd, _boundaries );
+      delegate.start( buffer, startOffset, segmentEnd, initialState );
+      if( delegate.getTokenType() != null || segmentEnd >= _bufferEnd )
+      {
+        return;
+      }
+      startOffset = segmentEnd;
     }
+  }
 
+  /**
+   * @param offsets Sorted offsets
+   * @return The first offset after {@code pos}, or {@code end} if there is none
+   */
+  static int findNextOffset( int pos, int end, int[] offsets )
+  {
     int low = 0;
-    int high = list.size() - 1;
-
+    int high = offsets.length - 1;
     while( low <= high )
     {
       int mid = (low + high) >>> 1;
-      int midVal = list.get( mid );
-      if( midVal <= pos )
+      if( offsets[mid] <= pos )
       {
         low = mid + 1;
       }
@@ -125,10 +125,6 @@ class ManTemplateJavaLexer extends DelegateLexer
         high = mid - 1;
       }
     }
-    if( list.size() <= low )
-    {
-      return end;
-    }
-    return list.get( low );
+    return low < offsets.length ? Math.min( offsets[low], end ) : end;
   }
 }
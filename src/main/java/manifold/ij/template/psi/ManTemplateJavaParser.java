@@ -12,11 +12,14 @@ import com.intellij.pom.java.LanguageLevel;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.impl.source.resolve.FileContextUtil;
 import com.intellij.psi.tree.IElementType;
-import java.util.Collections;
-import java.util.List;
 import manifold.ij.template.ManTemplateDataElementType;
 import org.jetbrains.annotations.NotNull;
 
+
+import static manifold.ij.template.ManTemplateDataElementType.DIRECTIVE_KIND;
+import static manifold.ij.template.ManTemplateDataElementType.EXPR_KIND;
+import static manifold.ij.template.ManTemplateDataElementType.isCodeOffset;
+
 public class ManTemplateJavaParser implements PsiParser
 {
   @NotNull
@@ -28,18 +31,17 @@ public class ManTemplateJavaParser implements PsiParser
     setLanguageLevel( builder );
     PsiBuilder.Marker rootMarker = builder.mark();
     ExpressionParser exprParser = new JavaParser().getExpressionParser();
-    List<Integer> exprOffsets = getExpressionOffsets( builder );
-    List<Integer> directiveOffsets = getDirectiveOffsets( builder );
-    MyStatementParser stmtParser = new MyStatementParser( new JavaParser(), this, exprOffsets, directiveOffsets );
+    int[] codeOffsets = getCodeOffsets( builder );
+    MyStatementParser stmtParser = new MyStatementParser( new JavaParser(), this, codeOffsets );
     while( !builder.eof() )
     {
       int offset = builder.getCurrentOffset();
-      if( directiveOffsets.contains( offset ) )
+      if( isCodeOffset( codeOffsets, offset, DIRECTIVE_KIND ) )
       {
         // Parse directive
         parseDirective( builder, offset );
       }
-      else if( exprOffsets.contains( offset ) )
+      else if( isCodeOffset( codeOffsets, offset, EXPR_KIND ) )
       {
         // Parse single expression
         parseExpression( builder, exprParser, offset );
@@ -92,7 +94,8 @@ public class ManTemplateJavaParser implements PsiParser
   private void eatRemainingTokensInCodeSegment( @NotNull PsiBuilder builder )
   {
     int currentOffset = builder.getCurrentOffset();
-    int next = ManTemplateJavaLexer.findNextOffset( currentOffset, builder.getOriginalText().length(), getExpressionOffsets( builder ), getStatementOffsets( builder ), getDirectiveOffsets( builder ) );
+    int[] boundaries = ManTemplateDataElementType.getBoundaries( getCodeOffsets( builder ) );
+    int next = ManTemplateJavaLexer.findNextOffset( currentOffset, builder.getOriginalText().length(), boundaries );
     while( currentOffset < next )
     {
       builder.advanceLexer();
@@ -100,21 +103,9 @@ public class ManTemplateJavaParser implements PsiParser
     }
   }
 
-  private List<Integer> getExpressionOffsets( @NotNull PsiBuilder builder )
-  {
-    PsiFile psiFile = builder.getUserDataUnprotected( FileContextUtil.CONTAINING_FILE_KEY );
-    return psiFile == null ? Collections.emptyList() : psiFile.getUserData( ManTemplateDataElementType.EXPR_OFFSETS );
-  }
-
-  private List<Integer> getDirectiveOffsets( @NotNull PsiBuilder builder )
-  {
-    PsiFile psiFile = builder.getUserDataUnprotected( FileContextUtil.CONTAINING_FILE_KEY );
-    return psiFile == null ? Collections.emptyList() : psiFile.getUserData( ManTemplateDataElementType.DIRECTIVE_OFFSETS );
-  }
-
-  private List<Integer> getStatementOffsets( @NotNull PsiBuilder builder )
+  private int[] getCodeOffsets( @NotNull PsiBuilder builder )
   {
     PsiFile psiFile = builder.getUserDataUnprotected( FileContextUtil.CONTAINING_FILE_KEY );
-    return psiFile == null ? Collections.emptyList() : psiFile.getUserData( ManTemplateDataElementType.STMT_OFFSETS );
+    return psiFile == null ? null : psiFile.getUserData( ManTemplateDataElementType.CODE_OFFSETS );
   }
 }
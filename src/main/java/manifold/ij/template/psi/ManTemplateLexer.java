@@ -2,73 +2,96 @@ package manifold.ij.template.psi;
 
 import com.intellij.lexer.LexerBase;
 import com.intellij.psi.tree.IElementType;
-import manifold.util.Stack;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import static manifold.ij.template.psi.ManTemplateTokenType.*;
 
+/**
+ * A state machine lexer, it scans one token per {@link #advance()}. The state at the start of each token is all the
+ * lexer needs to resume from that token, so the editor highlighter can restart lexing at any token and re-lex only
+ * the damaged range of a template.
+ * <p/>
+ * The state is one of the modes below, code modes also carry whether the lexer is in a string or char literal.
+ */
 public class ManTemplateLexer extends LexerBase
 {
+  private static final int CONTENT_MODE = 0;
+  private static final int COMMENT_MODE = 1;
+  private static final int EXPR_BRACE_MODE = 2;
+  private static final int EXPR_ANGLE_MODE = 3;
+  private static final int STMT_MODE = 4;
+  private static final int DIRECTIVE_MODE = 5;
+  private static final int MODE_MASK = 0x7;
+  private static final int IN_STRING = 0x8;
+  private static final int IN_CHAR = 0x10;
+
   private CharSequence myBuffer;
   private int myEndOffset;
 
-  private int _index;
-  private Stack<Token> _tokens;
-  private CharSequence _text;
-  private StringBuilder _stuff;
-
-  private int _tokenIndex;
-  private boolean _isParsingString;
-  private boolean _isParsingCharLiteral;
+  private ManTemplateTokenType _tokenType;
+  private int _tokenStart;
+  private int _tokenEnd;
+  private int _state;
+  private int _nextState;
 
   @Override
   public void start( @NotNull CharSequence buffer, int startOffset, int endOffset, int initialState )
   {
     myBuffer = buffer;
     myEndOffset = endOffset;
-
-    _tokens = new Stack<>();
-    _text = buffer.subSequence( startOffset, endOffset );
-    _index = initialState - startOffset;
-    tokenize();
-    _tokenIndex = -1;
-    nextToken();
+    _tokenEnd = startOffset;
+    _nextState = initialState;
+    advance();
   }
 
   @Override
   public void advance()
   {
-    nextToken();
+    _tokenStart = _tokenEnd;
+    _state = _nextState;
+    if( _tokenStart >= myEndOffset )
+    {
+      _tokenType = null;
+      return;
+    }
+
+    switch( _state & MODE_MASK )
+    {
+      case CONTENT_MODE:
+        lexContent();
+        break;
+      case COMMENT_MODE:
+        lexComment();
+        break;
+      default:
+        lexCode();
+        break;
+    }
   }
 
   @Override
   public int getState()
   {
-    return getToken() == null ? 0 : myEndOffset;
-  }
-
-  private Token getToken()
-  {
-    return _tokenIndex < 0 ? null : _tokens.get( _tokenIndex );
+    return _state;
   }
 
   @Nullable
   @Override
   public IElementType getTokenType()
   {
-    return getToken() == null ? null : getToken()._type;
+    return _tokenType;
   }
 
   @Override
   public int getTokenStart()
   {
-    return getToken() == null ? 0 : getToken()._offset;
+    return _tokenStart;
   }
 
   @Override
   public int getTokenEnd()
   {
-    return getToken() == null ? 0 : getToken()._offset + getToken()._value.length();
+    return _tokenEnd;
   }
 
   @Override
@@ -84,249 +107,138 @@ public class ManTemplateLexer extends LexerBase
     return myBuffer;
   }
 
-  private void nextToken()
+  private void lexContent()
   {
-    if( _tokenIndex+1 < _tokens.size() )
+    int index = _tokenStart;
+    if( charIs( index, '$' ) && charIs( index + 1, '{' ) )
     {
-      _tokenIndex++;
+      token( EXPR_BRACE_BEGIN, EXPR_BRACE_MODE );
+      return;
     }
-    else
+    if( charIs( index, '<' ) && charIs( index + 1, '%' ) )
     {
-      _tokenIndex = -1;
-    }
-  }
-
-  private void tokenize()
-  {
-    _stuff = new StringBuilder();
-    _isParsingString = false;
-    _isParsingCharLiteral = false;
-    int index = _index;
-    boolean escaped = false;
-    while( true )
-    {
-      if( index >= _text.length() )
+      if( charIs( index + 2, '=' ) )
       {
-        break;
+        token( EXPR_ANGLE_BEGIN, EXPR_ANGLE_MODE );
       }
-
-      int before = index;
-      char c = _text.charAt( index );
-
-      if( !escaped && c == '\\' && !isInCode() && _text.length() > index+1 &&
-          (charIs( index+1, '<' ) || charIs( index+1, '$' )) )
+      else if( charIs( index + 2, '@' ) )
       {
-        _stuff.append( c );
-        escaped = true;
-        index++;
-        continue;
+        token( DIR_ANGLE_BEGIN, DIRECTIVE_MODE );
       }
-
-      if( isTop( COMMENT_BEGIN ) )
+      else if( charIs( index + 2, '-' ) && charIs( index + 3, '-' ) )
       {
-        if( c == '-' )
-        {
-          index++;
-          if( charIs( index, '-' ) )
-          {
-            index++;
-            if( charIs( index, '%' ) )
-            {
-              index++;
-              if( charIs( index, '>' ) )
-              {
-                pushStuff();
-                pushToken( COMMENT_END, ++index );
-                continue;
-              }
-            }
-          }
-        }
+        token( COMMENT_BEGIN, COMMENT_MODE );
       }
       else
       {
-        if( c == '$' && !isInCode() && !escaped )
-        {
-          index++;
-          if( charIs( index, '{' ) )
-          {
-            pushStuff();
-            pushToken( EXPR_BRACE_BEGIN, ++index );
-            continue;
-          }
-        }
-        else if( c == '<' && !isInCode() && !escaped )
-        {
-          index++;
-          if( charIs( index, '%' ) )
-          {
-            pushStuff();
-            index++;
-            if( charIs( index, '=' ) )
-            {
-              pushToken( EXPR_ANGLE_BEGIN, ++index );
-              continue;
-            }
-            else if( charIs( index, '@' ) )
-            {
-              pushToken( DIR_ANGLE_BEGIN, ++index );
-              continue;
-            }
-            else if( charIs( index, '-' ) )
-            {
-              if( charIs( index + 1, '-' ) )
-              {
-                pushToken( COMMENT_BEGIN, index += 2 );
-                continue;
-              }
-            }
-
-            pushToken( STMT_ANGLE_BEGIN, index );
-            continue;
-          }
-        }
-        else if( c == '}' && isTop( EXPR_BRACE_BEGIN ) && isInCode() && !isParsingString() && !isParsingCharLiteral() )
-        {
-          pushStuff();
-          pushToken( EXPR_BRACE_END, ++index );
-          continue;
-        }
-        else if( c == '%' && isInCode() && !isParsingString() )
-        {
-          index++;
-          if( charIs( index, '>' ) )
-          {
-            pushStuff();
-            pushToken( ANGLE_END, ++index );
-            continue;
-          }
-        }
+        token( STMT_ANGLE_BEGIN, STMT_MODE );
       }
-      _stuff.append( c );
-      index = before + 1;
-      setParsingString( c, before );
-      setParsingCharLiteral( c, before );
-      escaped = false;
-    }
-    
-    pushStuff();
-  }
-
-  private void setParsingString( char c, int index )
-  {
-    if( !isInCode() || c != '"' || isParsingCharLiteral() )
-    {
       return;
     }
 
-    if( !isParsingString() )
+    while( index < myEndOffset )
     {
-      _isParsingString = true;
-    }
-    else if( !charIs( index-1, '\\' ) )
-    {
-      _isParsingString = false;
+      char c = myBuffer.charAt( index );
+      if( c == '\\' && (charIs( index + 1, '<' ) || charIs( index + 1, '$' )) )
+      {
+        // escaped delimiter, part of the content
+        index += 2;
+        continue;
+      }
+      if( (c == '$' && charIs( index + 1, '{' )) ||
+          (c == '<' && charIs( index + 1, '%' )) )
+      {
+        break;
+      }
+      index++;
     }
+    token( CONTENT, index, CONTENT_MODE );
   }
 
-  private boolean isParsingString()
+  private void lexComment()
   {
-    return _isParsingString;
-  }
-
-  private void setParsingCharLiteral( char c, int index )
-  {
-    if( !isInCode() || c != '\'' || isParsingString() )
+    int index = _tokenStart;
+    while( index < myEndOffset && !isCommentEnd( index ) )
     {
-      return;
+      index++;
     }
-
-    if( !isParsingCharLiteral() )
+    if( index == _tokenStart )
     {
-      _isParsingCharLiteral = true;
+      token( COMMENT_END, CONTENT_MODE );
     }
-    else if( !charIs( index-1, '\\' ) )
+    else
     {
-      _isParsingCharLiteral = false;
+      token( COMMENT, index, COMMENT_MODE );
     }
   }
 
-  private boolean isParsingCharLiteral()
+  private boolean isCommentEnd( int index )
   {
-    return _isParsingCharLiteral;
+    return charIs( index, '-' ) && charIs( index + 1, '-' ) && charIs( index + 2, '%' ) && charIs( index + 3, '>' );
   }
 
-  private boolean charIs( int index, char c )
+  private void lexCode()
   {
-    return _text.length() > index && _text.charAt( index ) == c;
-  }
+    int mode = _state & MODE_MASK;
+    boolean inString = (_state & IN_STRING) != 0;
+    boolean inChar = (_state & IN_CHAR) != 0;
 
-  private void pushStuff()
-  {
-    if( _stuff == null || _stuff.length() == 0 )
+    int index = _tokenStart;
+    while( index < myEndOffset )
     {
-      return;
-    }
+      char c = myBuffer.charAt( index );
+      if( !inString && c == '%' && charIs( index + 1, '>' ) )
+      {
+        break;
+      }
+      if( mode == EXPR_BRACE_MODE && c == '}' && !inString && !inChar )
+      {
+        break;
+      }
 
-    ManTemplateTokenType beginType = _tokens.size() == 0 ? null : _tokens.peek()._type;
-    ManTemplateTokenType stuffType;
-    if( beginType == EXPR_BRACE_BEGIN ||
-        beginType == EXPR_ANGLE_BEGIN )
-    {
-      stuffType = EXPR;
-    }
-    else if( beginType == STMT_ANGLE_BEGIN )
-    {
-      stuffType = STMT;
+      if( c == '"' && !inChar )
+      {
+        inString = !inString || charIs( index - 1, '\\' );
+      }
+      else if( c == '\'' && !inString )
+      {
+        inChar = !inChar || charIs( index - 1, '\\' );
+      }
+      index++;
     }
-    else if( beginType == DIR_ANGLE_BEGIN )
+
+    if( index > _tokenStart )
     {
-      stuffType = DIRECTIVE;
+      int state = mode | (inString ? IN_STRING : 0) | (inChar ? IN_CHAR : 0);
+      token( mode == STMT_MODE ? STMT : mode == DIRECTIVE_MODE ? DIRECTIVE : EXPR, index, state );
     }
-    else if( beginType == COMMENT_BEGIN )
+    else if( charIs( index, '}' ) )
     {
-      stuffType = COMMENT;
+      token( EXPR_BRACE_END, CONTENT_MODE );
     }
     else
     {
-      stuffType = CONTENT;
+      token( ANGLE_END, CONTENT_MODE );
     }
-    _tokens.push( new Token( stuffType, _index, _stuff.toString() ) );
-    _index += _stuff.length();
-    _stuff = new StringBuilder();
-  }
-
-  private void pushToken( ManTemplateTokenType tokenType, int index )
-  {
-    _tokens.push( new Token( tokenType, _index, tokenType.getToken() ) );
-    _index = index;
   }
 
-  private boolean isInCode()
+  /**
+   * A delimiter token
+   */
+  private void token( ManTemplateTokenType tokenType, int nextState )
   {
-    return isTop( EXPR_ANGLE_BEGIN ) ||
-           isTop( EXPR_BRACE_BEGIN ) ||
-           isTop( STMT_ANGLE_BEGIN ) ||
-           isTop( DIR_ANGLE_BEGIN ) ||
-           isTop( COMMENT_BEGIN );
+    token( tokenType, _tokenStart + tokenType.getToken().length(), nextState );
   }
 
-  private boolean isTop( ManTemplateTokenType tokenType )
+  private void token( ManTemplateTokenType tokenType, int end, int nextState )
   {
-    return !_tokens.isEmpty() && _tokens.peek()._type == tokenType;
+    _tokenType = tokenType;
+    _tokenEnd = end;
+    _nextState = nextState;
   }
 
-  private class Token
+  private boolean charIs( int index, char c )
   {
-    ManTemplateTokenType _type;
-    int _offset;
-    String _value;
-
-    Token( ManTemplateTokenType type, int offset, String value )
-    {
-      _type = type;
-      _offset = offset;
-      _value = value;
-    }
+    return index >= 0 && index < myEndOffset && myBuffer.charAt( index ) == c;
   }
 }
@@ -3,24 +3,26 @@ package manifold.ij.template.psi;
 import com.intellij.lang.PsiBuilder;
 import com.intellij.lang.java.parser.JavaParser;
 import com.intellij.lang.java.parser.StatementParser;
-import java.util.List;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+
+import static manifold.ij.template.ManTemplateDataElementType.DIRECTIVE_KIND;
+import static manifold.ij.template.ManTemplateDataElementType.EXPR_KIND;
+import static manifold.ij.template.ManTemplateDataElementType.isCodeOffset;
+
 class MyStatementParser extends StatementParser
 {
   private JavaParser _javaParser;
   private final ManTemplateJavaParser _manParser;
-  private List<Integer> _exprOffsets;
-  private final List<Integer> _directiveOffsets;
+  private final int[] _codeOffsets;
 
-  MyStatementParser( @NotNull final JavaParser javaParser, ManTemplateJavaParser manParser, List<Integer> exprOffsets, List<Integer> directiveOffsets )
+  MyStatementParser( @NotNull final JavaParser javaParser, ManTemplateJavaParser manParser, int[] codeOffsets )
   {
     super( javaParser );
     _javaParser = javaParser;
     _manParser = manParser;
-    _exprOffsets = exprOffsets;
-    _directiveOffsets = directiveOffsets;
+    _codeOffsets = codeOffsets;
   }
 
   @Nullable
@@ -47,11 +49,11 @@ class MyStatementParser extends StatementParser
 
   private boolean isTemplateExpression( int tokenStart )
   {
-    return _exprOffsets.contains( tokenStart );
+    return isCodeOffset( _codeOffsets, tokenStart, EXPR_KIND );
   }
 
   private boolean isTemplateDirective( int tokenStart )
   {
-    return _directiveOffsets.contains( tokenStart );
+    return isCodeOffset( _codeOffsets, tokenStart, DIRECTIVE_KIND );
   }
 }
@@ -0,0 +1,203 @@
+/*
+ * Manifold
+ */
+
+package manifold.ij.util;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes a task after a delay, coalescing tasks scheduled with the same key. Rescheduling a key replaces its task
+ * and restarts the delay, but never beyond the max latency measured from the first schedule, so a steady stream of
+ * requests still flushes periodically. Tasks for the same key never overlap, a task scheduled while its key is
+ * running waits for the run to finish.
+ * <p>
+ * Tasks execute on the application's shared scheduled executor. Pending tasks are cancelled on dispose, register
+ * the debouncer with the project that owns it.
+ * <p>
+ * Counts of scheduled, coalesced and executed tasks are kept for diagnostics, owners log them at debug level.
+ */
+public class KeyedDebouncer implements Disposable
+{
+  private static final Logger LOG = Logger.getInstance( KeyedDebouncer.class );
+
+  private final ScheduledExecutorService _executor;
+  private final long _maxLatencyMs;
+  private final Map<String, Entry> _entries;
+  private final AtomicLong _scheduled;
+  private final AtomicLong _coalesced;
+  private final AtomicLong _executed;
+  private boolean _disposed;
+
+  public KeyedDebouncer( long maxLatencyMs )
+  {
+    this( AppExecutorUtil.getAppScheduledExecutorService(), maxLatencyMs );
+  }
+
+  public KeyedDebouncer( ScheduledExecutorService executor, long maxLatencyMs )
+  {
+    _executor = executor;
+    _maxLatencyMs = maxLatencyMs;
+    _entries = new HashMap<>();
+    _scheduled = new AtomicLong();
+    _coalesced = new AtomicLong();
+    _executed = new AtomicLong();
+  }
+
+  public synchronized void schedule( String key, long delayMs, Runnable task )
+  {
+    if( _disposed )
+    {
+      return;
+    }
+
+    _scheduled.incrementAndGet();
+    Entry entry = _entries.get( key );
+    if( entry == null )
+    {
+      entry = new Entry( key );
+      _entries.put( key, entry );
+    }
+    if( entry._task == null )
+    {
+      entry._since = System.currentTimeMillis();
+    }
+    else
+    {
+      _coalesced.incrementAndGet();
+    }
+    entry._task = task;
+    entry._delayMs = delayMs;
+
+    if( !entry._running )
+    {
+      submit( entry );
+    }
+  }
+
+  public synchronized void cancel( String key )
+  {
+    Entry entry = _entries.get( key );
+    if( entry != null )
+    {
+      entry.cancel();
+      if( !entry._running )
+      {
+        _entries.remove( key );
+      }
+    }
+  }
+
+  public long getScheduledCount()
+  {
+    return _scheduled.get();
+  }
+
+  public long getCoalescedCount()
+  {
+    return _coalesced.get();
+  }
+
+  public long getExecutedCount()
+  {
+    return _executed.get();
+  }
+
+  @Override
+  public synchronized void dispose()
+  {
+    _disposed = true;
+    for( Entry entry : _entries.values() )
+    {
+      entry.cancel();
+    }
+    _entries.clear();
+  }
+
+  // call with lock held
+  private void submit( Entry entry )
+  {
+    if( entry._future != null )
+    {
+      entry._future.cancel( false );
+    }
+    long deadline = entry._since + _maxLatencyMs;
+    long delay = Math.max( 0, Math.min( entry._delayMs, deadline - System.currentTimeMillis() ) );
+    entry._future = _executor.schedule( () -> run( entry ), delay, TimeUnit.MILLISECONDS );
+  }
+
+  private void run( Entry entry )
+  {
+    Runnable task;
+    synchronized( this )
+    {
+      if( _disposed || entry._task == null || _entries.get( entry._key ) != entry )
+      {
+        return;
+      }
+      task = entry._task;
+      entry._task = null;
+      entry._future = null;
+      entry._running = true;
+    }
+
+    try
+    {
+      _executed.incrementAndGet();
+      task.run();
+    }
+    catch( Throwable e )
+    {
+      LOG.error( "KeyedDebouncer task threw an exception.", e );
+    }
+    finally
+    {
+      synchronized( this )
+      {
+        entry._running = false;
+        if( entry._task != null && !_disposed )
+        {
+          // scheduled while running
+          submit( entry );
+        }
+        else if( _entries.get( entry._key ) == entry )
+        {
+          _entries.remove( entry._key );
+        }
+      }
+    }
+  }
+
+  private static class Entry
+  {
+    private final String _key;
+    private Runnable _task;
+    private ScheduledFuture<?> _future;
+    private long _since;
+    private long _delayMs;
+    private boolean _running;
+
+    Entry( String key )
+    {
+      _key = key;
+    }
+
+    void cancel()
+    {
+      if( _future != null )
+      {
+        _future.cancel( false );
+        _future = null;
+      }
+      _task = null;
+    }
+  }
+}
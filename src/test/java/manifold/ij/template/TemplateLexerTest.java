@@ -0,0 +1,197 @@
+package manifold.ij.template;
+
+import com.intellij.psi.tree.IElementType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import manifold.ij.AbstractManifoldCodeInsightTest;
+import manifold.ij.template.psi.ManTemplateLexer;
+
+import static manifold.ij.template.psi.ManTemplateTokenType.*;
+
+public class TemplateLexerTest extends AbstractManifoldCodeInsightTest
+{
+  public void testContent()
+  {
+    assertTokens( "hello <html> \\${x} \\<%y%> $ < %",
+                  token( CONTENT, "hello <html> \\${x} \\<%y%> $ < %" ) );
+  }
+
+  public void testBraceExpression()
+  {
+    assertTokens( "a ${x + 1} b",
+                  token( CONTENT, "a " ),
+                  token( EXPR_BRACE_BEGIN, "${" ),
+                  token( EXPR, "x + 1" ),
+                  token( EXPR_BRACE_END, "}" ),
+                  token( CONTENT, " b" ) );
+  }
+
+  public void testAngleExpression()
+  {
+    assertTokens( "a <%= x %>",
+                  token( CONTENT, "a " ),
+                  token( EXPR_ANGLE_BEGIN, "<%=" ),
+                  token( EXPR, " x " ),
+                  token( ANGLE_END, "%>" ) );
+  }
+
+  public void testStatement()
+  {
+    assertTokens( "<% if( x ) { %>a<%}%>",
+                  token( STMT_ANGLE_BEGIN, "<%" ),
+                  token( STMT, " if( x ) { " ),
+                  token( ANGLE_END, "%>" ),
+                  token( CONTENT, "a" ),
+                  token( STMT_ANGLE_BEGIN, "<%" ),
+                  token( STMT, "}" ),
+                  token( ANGLE_END, "%>" ) );
+  }
+
+  public void testDirective()
+  {
+    assertTokens( "<%@ import java.util.ArrayList %>\n",
+                  token( DIR_ANGLE_BEGIN, "<%@" ),
+                  token( DIRECTIVE, " import java.util.ArrayList " ),
+                  token( ANGLE_END, "%>" ),
+                  token( CONTENT, "\n" ) );
+  }
+
+  public void testComment()
+  {
+    assertTokens( "<%-- a <% b %> ${c} --%>d",
+                  token( COMMENT_BEGIN, "<%--" ),
+                  token( COMMENT, " a <% b %> ${c} " ),
+                  token( COMMENT_END, "--%>" ),
+                  token( CONTENT, "d" ) );
+  }
+
+  public void testEmptyBlocks()
+  {
+    assertTokens( "${}<%%>",
+                  token( EXPR_BRACE_BEGIN, "${" ),
+                  token( EXPR_BRACE_END, "}" ),
+                  token( STMT_ANGLE_BEGIN, "<%" ),
+                  token( ANGLE_END, "%>" ) );
+  }
+
+  public void testAngleEndInStringLiteral()
+  {
+    assertTokens( "<% String a = \"<%= x %>\"; %>",
+                  token( STMT_ANGLE_BEGIN, "<%" ),
+                  token( STMT, " String a = \"<%= x %>\"; " ),
+                  token( ANGLE_END, "%>" ) );
+  }
+
+  public void testAngleEndAfterEscapedQuote()
+  {
+    assertTokens( "<%= \"a \\\" %> b\" %>",
+                  token( EXPR_ANGLE_BEGIN, "<%=" ),
+                  token( EXPR, " \"a \\\" %> b\" " ),
+                  token( ANGLE_END, "%>" ) );
+  }
+
+  public void testBraceInLiterals()
+  {
+    assertTokens( "${\"}\" + '}'}",
+                  token( EXPR_BRACE_BEGIN, "${" ),
+                  token( EXPR, "\"}\" + '}'" ),
+                  token( EXPR_BRACE_END, "}" ) );
+  }
+
+  public void testEscapedCharLiteral()
+  {
+    assertTokens( "${'\\'' + \"}\"}",
+                  token( EXPR_BRACE_BEGIN, "${" ),
+                  token( EXPR, "'\\'' + \"}\"" ),
+                  token( EXPR_BRACE_END, "}" ) );
+  }
+
+  public void testRestartFromTokenState()
+  {
+    String text =
+      "<%@ params( String param1 ) %>\n" +
+      "<html>\n" +
+      "  hello <% String text = \"%> }\"; %> bye\n" +
+      "  ${ text.charAt( 0 ) == '}' } \\${escaped}\n" +
+      "  <% for( int i = 0; i < 4; i++ ) {%>x<%}%>\n" +
+      "  <%-- comment <% %> --%><%= param1 %>\n" +
+      "</html>";
+
+    List<Token> all = lex( text, 0, 0 );
+    assertTrue( all.size() > 20 );
+    for( int i = 0; i < all.size(); i++ )
+    {
+      Token from = all.get( i );
+      assertEquals( "restarted at " + from, all.subList( i, all.size() ), lex( text, from._start, from._state ) );
+    }
+  }
+
+  public void testUnterminatedStringLiteral()
+  {
+    // the literal runs to the end of the buffer
+    assertTokens( "<%= \"abc %> ${x}",
+                  token( EXPR_ANGLE_BEGIN, "<%=" ),
+                  token( EXPR, " \"abc %> ${x}" ) );
+  }
+
+  private void assertTokens( String text, Token... expected )
+  {
+    assertEquals( Arrays.asList( expected ), lex( text, 0, 0 ) );
+  }
+
+  private static List<Token> lex( String text, int start, int state )
+  {
+    ManTemplateLexer lexer = new ManTemplateLexer();
+    lexer.start( text, start, text.length(), state );
+    List<Token> tokens = new ArrayList<>();
+    for( IElementType type; (type = lexer.getTokenType()) != null; lexer.advance() )
+    {
+      tokens.add( new Token( type, text.substring( lexer.getTokenStart(), lexer.getTokenEnd() ),
+                             lexer.getTokenStart(), lexer.getState() ) );
+    }
+    return tokens;
+  }
+
+  private static Token token( IElementType type, String text )
+  {
+    return new Token( type, text, -1, -1 );
+  }
+
+  /**
+   * Tokens are equal by type and text, the offset and state are for restarting
+   */
+  private static class Token
+  {
+    private final IElementType _type;
+    private final String _text;
+    private final int _start;
+    private final int _state;
+
+    Token( IElementType type, String text, int start, int state )
+    {
+      _type = type;
+      _text = text;
+      _start = start;
+      _state = state;
+    }
+
+    @Override
+    public boolean equals( Object o )
+    {
+      return o instanceof Token && ((Token)o)._type == _type && ((Token)o)._text.equals( _text );
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return _type.hashCode() * 31 + _text.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+      return _type + ":'" + _text + "'";
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package manifold.ij.template;
+
+import com.intellij.lang.Language;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.psi.FileViewProvider;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiFileFactory;
+import com.intellij.psi.impl.DebugUtil;
+import manifold.ij.AbstractManifoldCodeInsightTest;
+
+import static manifold.ij.template.psi.ManTemplateTokenType.CONTENT;
+import static manifold.ij.template.psi.ManTemplateTokenType.STMT;
+
+public class TemplateReparseTest extends AbstractManifoldCodeInsightTest
+{
+  private static final String FILE_NAME = "TestReparse.html.mtl";
+  private static final String TEXT =
+    "<%@ params( String param1 ) %>\n" +
+    "<html>\n" +
+    "  <h1>Title</h1>\n" +
+    "  <% for( int i = 0; i < 3; i++ ) { %>\n" +
+    "    <p>${param1} <%= i %></p>\n" +
+    "  <% } %>\n" +
+    "</html>";
+
+  public void testContentEdit()
+  {
+    // the Java root, having content as outer elements, is reused
+    int javaReuses = ManTemplateTreeReuse.getReuseCount( CONTENT );
+    int contentReuses = ManTemplateTreeReuse.getReuseCount( STMT );
+    reparse( "<h1>Title</h1>", "<h1>Other <b>title</b></h1>" );
+    assertEquals( javaReuses + 1, ManTemplateTreeReuse.getReuseCount( CONTENT ) );
+    assertEquals( contentReuses, ManTemplateTreeReuse.getReuseCount( STMT ) );
+  }
+
+  public void testCodeBlockEdit()
+  {
+    // the content root, having code as outer elements, is reused
+    int javaReuses = ManTemplateTreeReuse.getReuseCount( CONTENT );
+    int contentReuses = ManTemplateTreeReuse.getReuseCount( STMT );
+    reparse( "i < 3", "i < param1.length()" );
+    assertEquals( javaReuses, ManTemplateTreeReuse.getReuseCount( CONTENT ) );
+    assertEquals( contentReuses + 1, ManTemplateTreeReuse.getReuseCount( STMT ) );
+  }
+
+  public void testBlockStructureChange()
+  {
+    int javaReuses = ManTemplateTreeReuse.getReuseCount( CONTENT );
+    int contentReuses = ManTemplateTreeReuse.getReuseCount( STMT );
+    reparse( "<%= i %>", "<% if( i > 0 ) { %>x<% } %>" );
+    assertEquals( javaReuses, ManTemplateTreeReuse.getReuseCount( CONTENT ) );
+    assertEquals( contentReuses, ManTemplateTreeReuse.getReuseCount( STMT ) );
+  }
+
+  /**
+   * Edit the template and check every root of the reparsed file matches a full parse of the new text
+   */
+  private void reparse( String target, String replacement )
+  {
+    PsiFile file = myFixture.configureByText( FILE_NAME, TEXT );
+    FileViewProvider viewProvider = file.getViewProvider();
+    for( Language lang : viewProvider.getLanguages() )
+    {
+      // parse all roots so the reparse has committed trees to reuse
+      DebugUtil.psiToString( viewProvider.getPsi( lang ), false, false );
+    }
+
+    Document document = myFixture.getEditor().getDocument();
+    int offset = TEXT.indexOf( target );
+    assertTrue( offset >= 0 );
+    WriteCommandAction.runWriteCommandAction( getProject(), () ->
+    {
+      document.replaceString( offset, offset + target.length(), replacement );
+      PsiDocumentManager.getInstance( getProject() ).commitAllDocuments();
+    } );
+
+    String newText = document.getText();
+    assertEquals( newText, file.getText() );
+    FileViewProvider expected = PsiFileFactory.getInstance( getProject() )
+      .createFileFromText( FILE_NAME, ManTemplateFileType.INSTANCE, newText ).getViewProvider();
+    assertEquals( expected.getLanguages(), viewProvider.getLanguages() );
+    for( Language lang : viewProvider.getLanguages() )
+    {
+      assertEquals( lang.getID(),
+                    DebugUtil.psiToString( expected.getPsi( lang ), false, false ),
+                    DebugUtil.psiToString( viewProvider.getPsi( lang ), false, false ) );
+    }
+  }
+}